@@ -1,14 +1,11 @@
 import javax.swing.*;
 import javax.swing.border.*;
-import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 public class AlphaChatDesktop extends JFrame {
     // Color scheme
@@ -23,7 +20,8 @@ public class AlphaChatDesktop extends JFrame {
     
     // Components
     private JPanel mainPanel;
-    private JTextPane messagesArea;
+    private MessageView messageView;
+    private UiBus uiBus;
     private JTextField messageField;
     private JButton sendButton;
     private JButton emojiButton;
@@ -33,12 +31,11 @@ public class AlphaChatDesktop extends JFrame {
     private JPopupMenu emojiMenu;
     
     // Server components
-    private ServerSocket serverSocket;
-    private List<PrintWriter> clients;
-    private List<String> messageHistory;
-    private Map<String, String> userProfiles;
+    private ChatEngine engine;
+    private LineServer lineServer;
     private boolean isServerRunning;
     private int port = 3000;
+    private int linkPort = ChatConfig.getInt("desktop.link.port", 3001);
     private String networkIP;
     
     // Settings
@@ -52,6 +49,7 @@ public class AlphaChatDesktop extends JFrame {
         initializeComponents();
         setupUI();
         setupEventHandlers();
+        showRecoveredHistory();
         startServer();
         loadSettings();
     }
@@ -64,14 +62,13 @@ public class AlphaChatDesktop extends JFrame {
             networkIP = "localhost";
         }
         
-        // Initialize data structures
-        clients = new CopyOnWriteArrayList<>();
-        messageHistory = new CopyOnWriteArrayList<>();
-        userProfiles = new HashMap<>();
+        // Chat engine, embedded in-process
+        engine = new ChatEngine("AlphaChatDesktop");
         
         // Initialize components
         mainPanel = new JPanel(new BorderLayout());
-        messagesArea = new JTextPane();
+        uiBus = UiBus.fromConfig(this::alertUser);
+        messageView = MessageView.fromConfig(TEXT_SECONDARY, uiBus);
         messageField = new JTextField();
         sendButton = new JButton("Send");
         emojiButton = new JButton("😀");
@@ -179,15 +176,16 @@ public class AlphaChatDesktop extends JFrame {
             new EmptyBorder(10, 10, 10, 10)
         ));
         
-        // Messages area
-        messagesArea.setEditable(false);
-        messagesArea.setBackground(CARD_BACKGROUND);
-        messagesArea.setForeground(TEXT_PRIMARY);
-        messagesArea.setFont(new Font("Inter", Font.PLAIN, 14));
-        messagesArea.setBorder(null);
+        // Messages list
+        JList<MessageView.Line> messagesList = messageView.list();
+        messagesList.setBackground(CARD_BACKGROUND);
+        messagesList.setForeground(TEXT_PRIMARY);
+        messagesList.setSelectionBackground(BORDER_COLOR);
+        messagesList.setFont(new Font("Inter", Font.PLAIN, 14));
+        messagesList.setBorder(null);
         
-        // Make messages area scrollable
-        JScrollPane scrollPane = new JScrollPane(messagesArea);
+        // Make messages list scrollable
+        JScrollPane scrollPane = new JScrollPane(messagesList);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         scrollPane.setBorder(null);
@@ -349,156 +347,136 @@ public class AlphaChatDesktop extends JFrame {
     }
     
     private void startServer() {
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(port);
-                isServerRunning = true;
-                
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Server running on " + networkIP + ":" + port);
-                    statusLabel.setForeground(SUCCESS_COLOR);
-                });
-                
-                addMessage("System", "Server started successfully!", Color.GRAY);
-                addMessage("System", "Share this URL with your phone: http://" + networkIP + ":" + port, Color.CYAN);
-                
-                while (isServerRunning) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        new Thread(() -> handleClient(clientSocket)).start();
-                    } catch (IOException e) {
-                        if (isServerRunning) {
-                            e.printStackTrace();
-                        }
-                    }
+        // The UI reads committed messages straight from the engine, not over a socket
+        engine.subscribe(this::showCommitted);
+        lineServer = LineServer.fromConfig(linkPort, new LineServer.Listener() {
+            @Override
+            public void onOpen(LineServer.Client client) {
+                updateUserCount();
+            }
+            
+            @Override
+            public void onMessages(LineServer.Client client, List<String> messages) {
+                for (String message : messages) {
+                    postMessage("phone", message);
                 }
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    statusLabel.setText("Failed to start server");
-                    statusLabel.setForeground(Color.RED);
-                });
-                e.printStackTrace();
             }
-        }).start();
-    }
-    
-    private void handleClient(Socket clientSocket) {
-        try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
             
-            clients.add(out);
-            updateUserCount();
+            @Override
+            public void onUser(LineServer.Client client, String username) {
+                currentUser = username;
+                showNotice(username + " connected", Color.GREEN);
+            }
             
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                if (inputLine.startsWith("MESSAGE:")) {
-                    String message = inputLine.substring(8);
-                    addMessage("Phone", message, PRIMARY_COLOR);
-                    broadcastToClients("MESSAGE:Desktop:" + message);
-                } else if (inputLine.startsWith("USER:")) {
-                    String username = inputLine.substring(5);
-                    currentUser = username;
-                    addMessage("System", username + " connected", Color.GREEN);
-                }
+            @Override
+            public void onClose(LineServer.Client client) {
+                lineServer.broadcastDisconnect();
+                updateUserCount();
+                showNotice("Phone disconnected", Color.ORANGE);
             }
+        });
+        engine.subscribe(this::broadcastToClients);
+        try {
+            engine.start(WebServer.httpServer(engine, networkIP));
+            engine.start(lineServer);
+            isServerRunning = true;
+            
+            uiBus.coalesce(statusLabel, () -> {
+                statusLabel.setText("Server running on " + networkIP + ":" + port);
+                statusLabel.setForeground(SUCCESS_COLOR);
+            });
+            
+            showNotice("Server started successfully!", Color.GRAY);
+            showNotice("Share this URL with your phone: http://" + networkIP + ":" + port, Color.CYAN);
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            clients.removeIf(writer -> {
-                try {
-                    writer.println("DISCONNECT");
-                    return false;
-                } catch (Exception e) {
-                    return true;
-                }
+            uiBus.coalesce(statusLabel, () -> {
+                statusLabel.setText("Failed to start server");
+                statusLabel.setForeground(Color.RED);
             });
-            updateUserCount();
-            addMessage("System", "Phone disconnected", Color.ORANGE);
+            e.printStackTrace();
         }
     }
     
-    private void broadcastToClients(String message) {
-        for (PrintWriter client : clients) {
-            try {
-                client.println(message);
-            } catch (Exception e) {
-                // Remove failed client
-                clients.remove(client);
+    // Called on the sequencer thread; only queues, slow clients are dropped by the server instead of blocking it
+    private void broadcastToClients(List<ChatMessage> batch) {
+        String sender = null;
+        List<String> texts = new ArrayList<>();
+        for (ChatMessage message : batch) {
+            if (!ChatRooms.DEFAULT.equals(message.room())) continue;
+            if (!message.displayName().equals(sender)) {
+                if (sender != null) lineServer.broadcastMessages(sender, texts);
+                sender = message.displayName();
+                texts.clear();
             }
+            texts.add(message.text());
         }
+        if (sender != null) lineServer.broadcastMessages(sender, texts);
     }
     
     private void sendMessage() {
         String message = messageField.getText().trim();
         if (!message.isEmpty()) {
-            addMessage("Desktop", message, SECONDARY_COLOR);
-            broadcastToClients("MESSAGE:Desktop:" + message);
+            postMessage("desktop", message);
             messageField.setText("");
         }
     }
     
-    private void addMessage(String sender, String message, Color color) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                StyledDocument doc = messagesArea.getStyledDocument();
-                
-                // Create style for sender
-                SimpleAttributeSet senderStyle = new SimpleAttributeSet();
-                StyleConstants.setForeground(senderStyle, color);
-                StyleConstants.setBold(senderStyle, true);
-                StyleConstants.setFontSize(senderStyle, 12);
-                
-                // Create style for message
-                SimpleAttributeSet messageStyle = new SimpleAttributeSet();
-                StyleConstants.setForeground(messageStyle, TEXT_PRIMARY);
-                StyleConstants.setFontSize(messageStyle, 14);
-                
-                // Create style for timestamp
-                SimpleAttributeSet timeStyle = new SimpleAttributeSet();
-                StyleConstants.setForeground(timeStyle, TEXT_SECONDARY);
-                StyleConstants.setFontSize(timeStyle, 10);
-                StyleConstants.setItalic(timeStyle, true);
-                
-                // Add timestamp
-                String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
-                doc.insertString(doc.getLength(), "[" + timestamp + "] ", timeStyle);
-                
-                // Add sender
-                doc.insertString(doc.getLength(), sender + ": ", senderStyle);
-                
-                // Add message
-                doc.insertString(doc.getLength(), message + "\n", messageStyle);
-                
-                // Scroll to bottom
-                messagesArea.setCaretPosition(doc.getLength());
-                
-                // Play sound if enabled
-                if (soundEnabled) {
-                    Toolkit.getDefaultToolkit().beep();
-                }
-                
-            } catch (BadLocationException e) {
-                e.printStackTrace();
-            }
+    // Never blocks: called on the EDT and on socket event loops
+    private void postMessage(String sender, String text) {
+        engine.submit(engine.defaultRoom(), sender, null, null, text).whenComplete((message, error) -> {
+            if (error != null) showNotice("Message dropped: server busy", Color.ORANGE);
         });
     }
     
+    private void showCommitted(List<ChatMessage> batch) {
+        for (ChatMessage message : batch) {
+            if (ChatRooms.DEFAULT.equals(message.room())) showMessage(message, colorOf(message), true);
+        }
+    }
+    
+    // System notices are shown here only, not stored or sent to clients
+    private void showNotice(String text, Color color) {
+        showMessage(new ChatMessage(0, "system", null, null, text, System.currentTimeMillis(), ChatRooms.DEFAULT), color, true);
+    }
+    
+    private void showRecoveredHistory() {
+        for (ChatMessage entry : engine.history().latest(100)) {
+            showMessage(entry, colorOf(entry), false);
+        }
+    }
+    
+    private static Color colorOf(ChatMessage entry) {
+        switch (entry.sender()) {
+            case "phone": return PRIMARY_COLOR;
+            case "desktop": return SECONDARY_COLOR;
+            default: return Color.GRAY;
+        }
+    }
+    
+    private void showMessage(ChatMessage entry, Color color, boolean notify) {
+        messageView.add(entry, color, notify);
+    }
+    
     private void updateUserCount() {
-        SwingUtilities.invokeLater(() -> {
-            int count = clients.size() + 1; // +1 for desktop
+        uiBus.coalesce(userCountLabel, () -> {
+            int count = lineServer.size() + 1; // +1 for desktop
             userCountLabel.setText("Users: " + count);
         });
     }
     
+    private void alertUser() {
+        if (soundEnabled) {
+            Toolkit.getDefaultToolkit().beep();
+        }
+        if (notificationsEnabled && !isFocused() && Taskbar.isTaskbarSupported()
+                && Taskbar.getTaskbar().isSupported(Taskbar.Feature.USER_ATTENTION_WINDOW)) {
+            Taskbar.getTaskbar().requestWindowUserAttention(this);
+        }
+    }
+    
     private void stopServer() {
         isServerRunning = false;
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        engine.stop();
     }
     
     private void applyDarkTheme() {
@@ -832,8 +810,9 @@ public class AlphaChatDesktop extends JFrame {
         
         String connectionInfo = "AlphaChat Desktop Connection Information\n\n" +
                 "Server IP: " + networkIP + "\n" +
-                "Port: " + port + "\n" +
-                "Status: " + (isServerRunning ? "Running" : "Stopped") + "\n\n" +
+                "Port: " + port + " (desktop link: " + linkPort + ")\n" +
+                "Status: " + (isServerRunning ? "Running" : "Stopped") + "\n" +
+                "UI queue: " + uiBus.depth() + " pending (peak " + uiBus.peakDepth() + ")\n\n" +
                 "To connect from your phone:\n" +
                 "1. Make sure your phone is on the same WiFi network\n" +
                 "2. Open a web browser on your phone\n" +
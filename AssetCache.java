@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Static files under one directory, held in memory as read-only buffers with a
+ * content-hash ETag and Last-Modified, so a hit costs no file system calls and a browser
+ * that already has the file gets 304. Files above the per-file limit, or that no longer
+ * fit the total budget, keep only their metadata and are sent from disk with
+ * {@link HttpConnection#transferFrom} (sendfile where the platform has it). A single
+ * byte range is answered with 206 so media can be resumed and seeked. A WatchService
+ * thread drops entries whose files change and tells the listeners.
+ */
+final class AssetCache {
+    record Asset(Path path, String contentType, long length, long lastModified, String etag, ByteBuffer bytes) {}
+
+    private final Path root;
+    private final long maxBytes;
+    private final long fileMaxBytes;
+    private final Map<String, Asset> entries = new ConcurrentHashMap<>();
+    // Bumped by invalidate, so a load that overlapped a change is not kept
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    AssetCache(Path root, long maxBytes, long fileMaxBytes, boolean watch) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.fileMaxBytes = fileMaxBytes;
+        if (watch) startWatcher();
+    }
+
+    static AssetCache fromConfig(String dir) {
+        return new AssetCache(Paths.get(dir),
+                ChatConfig.getLong("assets.cache.maxBytes", 64L * 1024 * 1024),
+                ChatConfig.getLong("assets.cache.fileMaxBytes", 2L * 1024 * 1024),
+                ChatConfig.getBoolean("assets.watch", true));
+    }
+
+    /** Registers a callback receiving the name of every file that changed on disk. */
+    void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    /** Returns the asset for a request-relative name, or null if it does not exist or escapes the root. */
+    Asset lookup(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) return null;
+        // Keyed by the normalized relative path, which is also what the watcher reports
+        String key = root.relativize(path).toString();
+        Asset asset = entries.get(key);
+        if (asset != null) return asset;
+        if (!Files.isRegularFile(path)) return null;
+        AtomicLong version = versions.computeIfAbsent(key, k -> new AtomicLong());
+        long loadedVersion = version.get();
+        asset = load(path);
+        if (asset.bytes() != null) {
+            if (cachedBytes.addAndGet(asset.length()) > maxBytes) {
+                cachedBytes.addAndGet(-asset.length());
+                asset = new Asset(asset.path(), asset.contentType(), asset.length(), asset.lastModified(), asset.etag(), null);
+            }
+        }
+        Asset raced = entries.putIfAbsent(key, asset);
+        if (raced != null) {
+            if (asset.bytes() != null) cachedBytes.addAndGet(-asset.length());
+            return raced;
+        }
+        // The file changed while it was read: serve these bytes once, but don't keep them
+        if (version.get() != loadedVersion && entries.remove(key, asset) && asset.bytes() != null) {
+            cachedBytes.addAndGet(-asset.length());
+        }
+        return asset;
+    }
+
+    /** Writes the named asset (or 304); returns false if there is no such asset. */
+    boolean serve(HttpConnection connection, HttpRequest request, String name) throws IOException {
+        Asset asset = lookup(name);
+        if (asset == null) return false;
+        boolean notModified;
+        String ifNoneMatch = request.header("if-none-match");
+        if (ifNoneMatch != null) {
+            notModified = ETags.matches(ifNoneMatch, asset.etag());
+        } else {
+            long since = HttpDates.parse(request.header("if-modified-since"));
+            notModified = since >= 0 && asset.lastModified() / 1000 <= since / 1000;
+        }
+
+        long start = 0;
+        long count = asset.length();
+        StringBuilder head = new StringBuilder(256);
+        if (notModified) {
+            head.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            long[] range = ifRangeHolds(request, asset) ? parseRange(request.header("range"), asset.length()) : null;
+            if (range == UNSATISFIABLE) {
+                head.append("HTTP/1.1 416 Range Not Satisfiable\r\n")
+                        .append("Content-Range: bytes */").append(asset.length()).append("\r\n")
+                        .append("Content-Length: 0\r\n");
+                count = 0;
+            } else if (range != null) {
+                start = range[0];
+                count = range[1] - range[0] + 1;
+                head.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(range[0]).append('-').append(range[1]).append('/').append(asset.length()).append("\r\n");
+            } else {
+                head.append("HTTP/1.1 200 OK\r\n");
+            }
+            head.append("Content-Type: ").append(asset.contentType()).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n");
+            if (range != UNSATISFIABLE) head.append("Content-Length: ").append(count).append("\r\n");
+        }
+        head.append("Date: ").append(HttpDates.now()).append("\r\n")
+                .append("ETag: ").append(asset.etag()).append("\r\n")
+                .append("Last-Modified: ").append(HttpDates.format(asset.lastModified())).append("\r\n")
+                .append("Cache-Control: public, max-age=3600\r\n")
+                .append(request.connectionHeader()).append("\r\n");
+        ByteBuffer headBytes = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (notModified || count == 0) {
+            connection.write(headBytes);
+        } else if (asset.bytes() != null) {
+            ByteBuffer body = asset.bytes().duplicate();
+            body.position((int) start).limit((int) (start + count));
+            connection.write(headBytes, body);
+        } else {
+            connection.write(headBytes);
+            connection.transferFrom(FileChannel.open(asset.path(), StandardOpenOption.READ), start, count);
+        }
+        return true;
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    // If-Range names the version the client already holds part of; a mismatch means send it all
+    private static boolean ifRangeHolds(HttpRequest request, Asset asset) {
+        String ifRange = request.header("if-range");
+        if (ifRange == null) return true;
+        if (ifRange.startsWith("\"")) return ifRange.equals(asset.etag());
+        long date = HttpDates.parse(ifRange);
+        return date >= 0 && asset.lastModified() / 1000 <= date / 1000;
+    }
+
+    /**
+     * Parses a single {@code bytes=} range into inclusive {start, end}. Returns null to
+     * serve the whole file (no header, a unit other than bytes, or several ranges) and
+     * {@link #UNSATISFIABLE} when the range lies past the end.
+     */
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) return UNSATISFIABLE;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (start >= length) return UNSATISFIABLE;
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+                if (end < start) return null;
+            }
+            if (start >= length) return UNSATISFIABLE;
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Asset load(Path path) throws IOException {
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        String type = contentType(path.getFileName().toString());
+        long size = Files.size(path);
+        if (size > fileMaxBytes) {
+            // Too big to hold; the tag is derived from size and mtime instead of content
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+            return new Asset(path, type, size, lastModified, etag, null);
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        return new Asset(path, type, bytes.length, lastModified, ETags.of(bytes), ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+    }
+
+    /** Drops the cached copy of {@code name} and notifies the listeners. */
+    void invalidate(String name) {
+        AtomicLong version = versions.get(name);
+        if (version != null) version.incrementAndGet();
+        Asset removed = entries.remove(name);
+        if (removed != null && removed.bytes() != null) cachedBytes.addAndGet(-removed.length());
+        for (Consumer<String> listener : listeners) {
+            try {
+                listener.accept(name);
+            } catch (RuntimeException e) {
+                System.err.println("Asset listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void startWatcher() {
+        WatchService watcher;
+        try {
+            if (!Files.isDirectory(root)) return;
+            watcher = FileSystems.getDefault().newWatchService();
+            root.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            System.err.println("Asset watcher disabled: " + e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            for (String name : versions.keySet()) invalidate(name);
+                        } else {
+                            invalidate(((Path) event.context()).toString());
+                        }
+                    }
+                    if (!key.reset()) return;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // shutting down
+            }
+        }, "asset-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static String contentType(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+        if (name.endsWith(".png")) return "image/png";
+        if (name.endsWith(".gif")) return "image/gif";
+        if (name.endsWith(".webp")) return "image/webp";
+        if (name.endsWith(".svg")) return "image/svg+xml";
+        if (name.endsWith(".html") || name.endsWith(".htm")) return "text/html; charset=utf-8";
+        if (name.endsWith(".css")) return "text/css; charset=utf-8";
+        if (name.endsWith(".js")) return "text/javascript; charset=utf-8";
+        if (name.endsWith(".json")) return "application/json";
+        if (name.endsWith(".mp3")) return "audio/mpeg";
+        if (name.endsWith(".m4a")) return "audio/mp4";
+        if (name.endsWith(".ogg") || name.endsWith(".oga")) return "audio/ogg";
+        if (name.endsWith(".mp4")) return "video/mp4";
+        if (name.endsWith(".webm")) return "video/webm";
+        return "application/octet-stream";
+    }
+}
@@ -0,0 +1,37 @@
+import java.util.Locale;
+
+/**
+ * Server tuning knobs. Each key is read from the {@code alphachat.<key>} system property,
+ * falling back to the {@code ALPHACHAT_<KEY>} environment variable and then the default.
+ */
+final class ChatConfig {
+    private ChatConfig() {}
+
+    static String get(String key, String defaultValue) {
+        String value = System.getProperty("alphachat." + key);
+        if (value == null) {
+            value = System.getenv("ALPHACHAT_" + key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+
+    static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(get(key, Long.toString(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(get(key, Boolean.toString(defaultValue)));
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The chat core every front end embeds: rooms and their histories, the journal, the sequencer
+ * that orders and persists posted messages, sender profiles and the shared settings. Messages
+ * go in through {@link #submit} or {@link #publish} and come out, one committed batch at a
+ * time, to every {@link #subscribe subscriber}; an in-process UI subscribes directly, and
+ * network transports ({@link ChatHttpServer}, the desktop socket link) are subscribers too,
+ * started and stopped with the engine.
+ */
+final class ChatEngine {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    /** A front end that serves the engine to clients over the network. */
+    interface Transport {
+        void start() throws IOException;
+
+        void stop();
+    }
+
+    private final ChatRooms rooms = ChatRooms.fromConfig();
+    private final MessageSequencer sequencer;
+    private final ProfileRegistry profiles = ProfileRegistry.fromConfig();
+    private final List<Consumer<List<ChatMessage>>> subscribers = new CopyOnWriteArrayList<>();
+    private final List<Consumer<ChatSettings>> settingsListeners = new CopyOnWriteArrayList<>();
+    private final List<Transport> transports = new ArrayList<>();
+    // Readers take the current snapshot, writers swap in a new one
+    private final AtomicReference<ChatSettings> settings = new AtomicReference<>(ChatSettings.DEFAULTS);
+
+    /** Opens the engine of one application; {@code name} picks its journal directory. */
+    ChatEngine(String name) {
+        MessageJournal journal = MessageJournal.open(name, rooms::restore);
+        this.sequencer = MessageSequencer.fromConfig(journal, this::deliver);
+    }
+
+    ChatRooms rooms() {
+        return rooms;
+    }
+
+    ProfileRegistry profiles() {
+        return profiles;
+    }
+
+    ChatRooms.Room defaultRoom() {
+        return rooms.get(ChatRooms.DEFAULT);
+    }
+
+    /** The default room's history. */
+    MessageHistory history() {
+        return defaultRoom().history();
+    }
+
+    /** Queues a message for the room without blocking; the future fails if the queue is full. */
+    CompletableFuture<ChatMessage> submit(ChatRooms.Room room, String sender, String name, String avatar, String text) {
+        return sequencer.submit(room, sender, name, avatar, text);
+    }
+
+    /** Queues a message and waits up to the send SLA; false only if it was rejected. */
+    boolean publish(ChatRooms.Room room, String sender, String name, String avatar, String text) {
+        return sequencer.publish(room, sender, name, avatar, text);
+    }
+
+    /**
+     * Registers a consumer of every committed batch, called on the sequencer thread in commit
+     * order, so it must hand slow work off. Returns the action that unsubscribes it.
+     */
+    Runnable subscribe(Consumer<List<ChatMessage>> subscriber) {
+        subscribers.add(subscriber);
+        return () -> subscribers.remove(subscriber);
+    }
+
+    ChatSettings settings() {
+        return settings.get();
+    }
+
+    /** Registers a consumer of settings changes, called in the order they were made; returns its removal. */
+    Runnable onSettingsChanged(Consumer<ChatSettings> listener) {
+        settingsListeners.add(listener);
+        return () -> settingsListeners.remove(listener);
+    }
+
+    /** Returns false for an unknown setting or value. */
+    boolean updateSetting(String setting, String value) {
+        // Writers are serialized so listeners see the snapshots in the order they were set
+        synchronized (settings) {
+            ChatSettings current = settings.get();
+            ChatSettings updated = current.with(setting, value);
+            if (updated == null) return false;
+            if (updated.equals(current)) return true;
+            settings.set(updated);
+            for (Consumer<ChatSettings> listener : settingsListeners) listener.accept(updated);
+        }
+        return true;
+    }
+
+    /** Starts {@code transport} and stops it with the engine. */
+    void start(Transport transport) throws IOException {
+        transport.start();
+        synchronized (transports) {
+            transports.add(transport);
+        }
+    }
+
+    /** Stops every transport; the journal syncs and closes at shutdown. */
+    void stop() {
+        synchronized (transports) {
+            for (Transport transport : transports) transport.stop();
+            transports.clear();
+        }
+    }
+
+    private void deliver(List<ChatMessage> batch) {
+        for (Consumer<List<ChatMessage>> subscriber : subscribers) {
+            try {
+                subscriber.accept(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** A subscriber for console servers: prints each batch as one write. */
+    static void log(List<ChatMessage> batch) {
+        StringBuilder log = new StringBuilder();
+        for (ChatMessage message : batch) {
+            String time = TIME_FORMAT.format(Instant.ofEpochMilli(message.timestamp()));
+            log.append('[').append(time).append("] ");
+            if (!ChatRooms.DEFAULT.equals(message.room())) log.append('#').append(message.room()).append(' ');
+            log.append(message.displayName()).append(": ").append(message.text()).append(System.lineSeparator());
+        }
+        System.out.print(log);
+    }
+}
@@ -0,0 +1,512 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * The HTTP transport of a {@link ChatEngine}: posts and profile and settings updates in,
+ * Server-Sent Events, WebSocket and Socket.IO streams out, plus the assets, the client in
+ * {@code public/} and whatever HTML pages the application registers with {@link #page}.
+ * Runs on the legacy thread-per-connection engine or on {@link NioHttpEngine}
+ * ({@code http.engine}).
+ */
+final class ChatHttpServer implements ChatEngine.Transport {
+    private static final String SOCKET_IO_CLIENT = ChatConfig.get("socketio.client.url", "https://cdn.socket.io/4.7.5/socket.io.min.js");
+    private static final int REPLAY_MAX = ChatConfig.getInt("sse.replay.max", 500);
+    private static final int REPLAY_SNAPSHOT = ChatConfig.getInt("sse.replay.snapshot", 50);
+    private static final int KEEPALIVE_TIMEOUT_MILLIS = ChatConfig.getInt("http.keepalive.timeout.millis", 5000);
+    private static final int KEEPALIVE_MAX = ChatConfig.getInt("http.keepalive.max", 100);
+    private static final boolean SSE_COMPRESS = ChatConfig.getBoolean("sse.compress", false);
+
+    private final ChatEngine engine;
+    private final int port;
+    private final String networkIp;
+    private final SseHub sseHub = SseHub.fromConfig();
+    // Streams that only follow settings (/events?settings=1); not counted in any room
+    private final SseHub.Channel settingsChannel = new SseHub.Channel();
+    private final SocketIo socketIo;
+    private final EngineIo engineIo;
+    private final ExecutorService httpExecutor = HttpExecutors.fromConfig();
+    private final PageCache pages = new PageCache();
+    private final AssetCache assets = AssetCache.fromConfig("assets");
+    private final Thumbnails thumbnails = Thumbnails.fromConfig(assets, "assets");
+    private final AssetCache publicFiles = AssetCache.fromConfig("public");
+    private ServerSocketChannel serverChannel;
+    private NioHttpEngine nioEngine;
+    private Runnable unsubscribe;
+
+    ChatHttpServer(ChatEngine engine, int port, String networkIp) {
+        this.engine = engine;
+        this.port = port;
+        this.networkIp = networkIp;
+        this.socketIo = new SocketIo(engine, REPLAY_SNAPSHOT);
+        this.engineIo = EngineIo.fromConfig(socketIo, this::resumeConnection);
+    }
+
+    /** The address phones should open. */
+    String url() {
+        return "http://" + networkIp + ":" + port + "/";
+    }
+
+    /** Serves the HTML from {@code renderer} at {@code path}, re-rendered after settings or avatar changes. */
+    void page(String path, Supplier<String> renderer) {
+        pages.register(path, "text/html; charset=utf-8", renderer);
+    }
+
+    @Override
+    public void start() throws IOException {
+        pages.warm();
+        assets.addListener(name -> {
+            if (name.startsWith("avatar_")) pages.invalidateAll();
+        });
+        Runnable unsubscribeMessages = engine.subscribe(this::publishBatch);
+        Runnable unsubscribeSettings = engine.onSettingsChanged(this::settingsChanged);
+        unsubscribe = () -> {
+            unsubscribeMessages.run();
+            unsubscribeSettings.run();
+        };
+        try {
+            bind();
+        } catch (IOException e) {
+            unsubscribe.run();
+            throw e;
+        }
+    }
+
+    private void bind() throws IOException {
+        if ("nio".equalsIgnoreCase(ChatConfig.get("http.engine", "legacy"))) {
+            nioEngine = new NioHttpEngine(port, ChatConfig.getInt("http.nio.threads", Runtime.getRuntime().availableProcessors()),
+                    this::handleHttpConnection, httpExecutor, KEEPALIVE_TIMEOUT_MILLIS);
+            nioEngine.start();
+            return;
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        Thread serverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket client = serverChannel.accept().socket();
+                    try {
+                        httpExecutor.execute(() -> handleHttpConnection(client));
+                    } catch (RejectedExecutionException e) {
+                        HttpExecutors.rejectConnection(client);
+                    }
+                }
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) System.err.println("HTTP server error: " + e.getMessage());
+            }
+        }, "http-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @Override
+    public void stop() {
+        if (unsubscribe != null) unsubscribe.run();
+        if (nioEngine != null) nioEngine.stop();
+        if (serverChannel != null) {
+            try { serverChannel.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Called on the sequencer thread with every batch of newly committed messages
+    private void publishBatch(List<ChatMessage> batch) {
+        Map<String, List<SseHub.Frame>> framesByRoom = new LinkedHashMap<>();
+        for (ChatMessage message : batch) {
+            framesByRoom.computeIfAbsent(message.room(), r -> new ArrayList<>()).add(messageFrame(message));
+        }
+        // Each room's frames go only to that room's subscribers
+        for (Map.Entry<String, List<SseHub.Frame>> entry : framesByRoom.entrySet()) {
+            ChatRooms.Room room = engine.rooms().get(entry.getKey());
+            if (room != null) sseHub.broadcastFrames(room.channel(), entry.getValue());
+        }
+        socketIo.publish(batch);
+    }
+
+    private void settingsChanged(ChatSettings snapshot) {
+        SseHub.Frame frame = settingsFrame(snapshot);
+        for (ChatRooms.Room room : engine.rooms().all()) sseHub.broadcastFrame(room.channel(), frame);
+        sseHub.broadcastFrame(settingsChannel, frame);
+        pages.invalidateAll();
+    }
+
+    // Continues serving a connection whose held request (a Socket.IO long-poll) has been answered
+    private void resumeConnection(HttpConnection connection) {
+        try {
+            httpExecutor.execute(() -> handleHttpConnection(connection));
+        } catch (RejectedExecutionException e) {
+            try { connection.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void handleHttpConnection(Socket socket) {
+        try {
+            handleHttpConnection(new SocketHttpConnection(socket, KEEPALIVE_TIMEOUT_MILLIS));
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Serves requests off one connection until it closes, hits the keep-alive limit or is
+    // taken over by an event stream
+    private void handleHttpConnection(HttpConnection connection) {
+        boolean keepOpen = false;
+        try {
+            while (true) {
+                HttpRequest request = connection.readRequest();
+                if (request == null) {
+                    keepOpen = connection.resumeReading();
+                    return;
+                }
+                if (connection.nextRequest() >= KEEPALIVE_MAX) request.closeAfterResponse();
+                if (handleRequest(connection, request)) {
+                    keepOpen = true;
+                    return;
+                }
+                if (!request.keepAlive()) return;
+            }
+        } catch (HttpRequestParser.ParseException e) {
+            try { connection.write(e.response()); } catch (IOException ignored) {}
+        } catch (IOException ignored) {
+        } finally {
+            if (!keepOpen) {
+                try { connection.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // Writes the response to one request; returns true if the connection now belongs to an event stream
+    private boolean handleRequest(HttpConnection connection, HttpRequest request) throws IOException {
+        String method = request.method();
+        String path = request.path();
+
+        if ("GET".equals(method) && pages.serve(connection, request, path)) {
+            return false;
+        } else if ("GET".equals(method) && "/events".equals(path)) {
+            return handleSse(connection, request);
+        } else if ("GET".equals(method) && "/ws".equals(path)) {
+            return handleWebSocket(connection, request);
+        } else if ("POST".equals(method) && "/send".equals(path)) {
+            byte[] body = request.body();
+            String form = new String(body, StandardCharsets.UTF_8);
+            String text = parseFormField(form, "text");
+            if (text == null) text = "";
+            String decoded = urlDecode(text);
+            if (!decoded.isEmpty()) {
+                // Name and avatar come from the registered profile; the form fields are only a fallback
+                ProfileRegistry.Profile profile = engine.profiles().get(formValue(form, "sessionId"));
+                String name = profile != null ? profile.name() : formValue(form, "name");
+                String avatar = profile != null ? profile.avatar() : formValue(form, "avatar");
+                ChatRooms.Room room = requestedRoom(connection, request);
+                if (room == null) return false;
+                if (!engine.publish(room, "phone", name, avatar, decoded)) {
+                    writeText(connection, request, 503, "Service Unavailable", "text/plain", "Busy");
+                    return false;
+                }
+            }
+            writeNoContent(connection, request);
+        } else if ("POST".equals(method) && "/profile".equals(path)) {
+            byte[] body = request.body();
+            String form = new String(body, StandardCharsets.UTF_8);
+            String avatar = formValue(form, "avatar");
+            String sessionId = formValue(form, "sessionId");
+            if (avatar != null && sessionId != null) {
+                engine.profiles().put(sessionId, new ProfileRegistry.Profile(avatar, formValue(form, "name")));
+                writeText(connection, request, 200, "OK", "application/json", "{\"success\":true}");
+            } else {
+                writeText(connection, request, 400, "Bad Request", "application/json", "{\"success\":false}");
+            }
+        } else if ("POST".equals(method) && "/settings".equals(path)) {
+            byte[] body = request.body();
+            String form = new String(body, StandardCharsets.UTF_8);
+            String setting = formValue(form, "setting");
+            String value = formValue(form, "value");
+            if (setting != null && value != null && engine.updateSetting(setting, value)) {
+                writeText(connection, request, 200, "OK", "application/json", "{\"success\":true}");
+            } else {
+                writeText(connection, request, 400, "Bad Request", "application/json", "{\"success\":false}");
+            }
+        } else if ("GET".equals(method) && "/health".equals(path)) {
+            writeText(connection, request, 200, "OK", "text/plain", "ok");
+        } else if ("GET".equals(method) && "/rooms".equals(path)) {
+            writeText(connection, request, 200, "OK", "application/json", engine.rooms().metricsJson());
+        } else if (path.startsWith("/assets/")) {
+            serveAsset(connection, request);
+        } else if ("/socket.io/".equals(path)) {
+            return engineIo.handle(connection, request);
+        } else if ("GET".equals(method) && "/socket.io/socket.io.js".equals(path)) {
+            writeRedirect(connection, request, SOCKET_IO_CLIENT);
+        } else if ("GET".equals(method) && "/api/generate-qr".equals(path)) {
+            generateQr(connection, request);
+        } else if ("GET".equals(method) && "/app".equals(path)) {
+            writeRedirect(connection, request, "/app/");
+        } else if ("GET".equals(method) && path.startsWith("/app/")) {
+            String name = path.substring("/app/".length());
+            if (!publicFiles.serve(connection, request, name.isEmpty() ? "index.html" : name)) {
+                writeText(connection, request, 404, "Not Found", "text/plain", "Not Found");
+            }
+        } else {
+            writeText(connection, request, 404, "Not Found", "text/plain", "Not Found");
+        }
+        return false;
+    }
+
+    private static SseHub.Frame settingsFrame(ChatSettings snapshot) {
+        String json = snapshot.toJson();
+        return new SseHub.Frame(0, SseHub.encodeFrame("event: settings\ndata: " + json + "\n\n"),
+                WebSocket.textFrame("{\"event\":\"settings\",\"data\":" + json + "}"));
+    }
+
+    // Starts a chat session for the client in public/ and returns a QR code phones scan to join it
+    private void generateQr(HttpConnection connection, HttpRequest request) throws IOException {
+        String sessionId = socketIo.createSession();
+        if (sessionId == null) {
+            writeText(connection, request, 503, "Service Unavailable", "text/plain", "Too many rooms");
+            return;
+        }
+        String payload = "{\"ip\":\"" + escapeJson(networkIp) + "\",\"port\":" + port + ",\"session\":\"" + sessionId + "\"}";
+        String svg = QrCode.encode(payload).toSvg(4, 8);
+        String qrUrl = "data:image/svg+xml;base64," + Base64.getEncoder().encodeToString(svg.getBytes(StandardCharsets.UTF_8));
+        writeText(connection, request, 200, "OK", "application/json",
+                "{\"sessionId\":\"" + sessionId + "\",\"serverIp\":\"" + escapeJson(networkIp) + "\",\"qrUrl\":\"" + qrUrl + "\"}");
+    }
+
+    private void serveAsset(HttpConnection connection, HttpRequest request) throws IOException {
+        String fileName = request.path().substring("/assets/".length());
+        String width = request.query("w");
+        if (width != null && thumbnails != null && thumbnails.serve(connection, request, fileName, width)) return;
+        if (!assets.serve(connection, request, fileName)) {
+            writeText(connection, request, 404, "Not Found", "text/plain", "Asset not found");
+        }
+    }
+
+    // The room named by ?room=, or null after answering 400 (bad name) or 503 (room limit reached)
+    private ChatRooms.Room requestedRoom(HttpConnection connection, HttpRequest request) throws IOException {
+        String name = ChatRooms.nameOf(request.query("room"));
+        if (name == null) {
+            writeText(connection, request, 400, "Bad Request", "text/plain", "Invalid room name");
+            return null;
+        }
+        ChatRooms.Room room = engine.rooms().acquire(name);
+        if (room == null) {
+            writeText(connection, request, 503, "Service Unavailable", "text/plain", "Too many rooms");
+        }
+        return room;
+    }
+
+    // Upgrades to a WebSocket carrying both directions: chat text in (instead of POST /send)
+    // and the room's frames out. Returns true if the connection was taken over.
+    private boolean handleWebSocket(HttpConnection connection, HttpRequest request) throws IOException {
+        if (!WebSocket.isUpgrade(request)) {
+            writeText(connection, request, 400, "Bad Request", "text/plain", "Expected a WebSocket upgrade");
+            return false;
+        }
+        ChatRooms.Room room = requestedRoom(connection, request);
+        if (room == null) return false;
+        String rawSessionId = request.query("sessionId");
+        String sessionId = rawSessionId == null ? null : urlDecode(rawSessionId);
+        long lastId = -1;
+        if (request.query("lastEventId") != null) {
+            try { lastId = Long.parseLong(request.query("lastEventId")); } catch (NumberFormatException ignored) {}
+        }
+        long resumeFrom = lastId;
+        long since = queryMillis(request, "since");
+
+        connection.write(WebSocket.handshake(request));
+        SseHub.Subscriber subscriber = sseHub.subscribeWebSocket(room.channel(), connection, () -> replayFrames(room.history(), resumeFrom, since));
+        connection.upgrade(new WebSocket(connection, new WebSocket.Listener() {
+            @Override
+            public void onText(WebSocket socket, String text) {
+                if (text.trim().isEmpty()) return;
+                // Never blocks: on NIO this runs on the event loop
+                ProfileRegistry.Profile profile = engine.profiles().get(sessionId);
+                engine.submit(room, "phone", profile != null ? profile.name() : null, profile != null ? profile.avatar() : null, text)
+                        .whenComplete((message, error) -> {
+                            if (error == null) return;
+                            try {
+                                socket.sendText("{\"event\":\"error\",\"data\":\"Busy\"}");
+                            } catch (IOException ignored) {
+                            }
+                        });
+            }
+
+            @Override
+            public void onClose(WebSocket socket) {
+                subscriber.close();
+            }
+        }));
+        return true;
+    }
+
+    // Returns true if the connection now belongs to the event stream
+    private boolean handleSse(HttpConnection connection, HttpRequest request) throws IOException {
+        boolean settingsOnly = "1".equals(request.query("settings"));
+        ChatRooms.Room room = settingsOnly ? null : requestedRoom(connection, request);
+        if (!settingsOnly && room == null) return false;
+        // Gzip on a stream is opt-in: every batch is sync-flushed, which some proxies still buffer
+        boolean gzip = SSE_COMPRESS && request.acceptsEncoding("gzip");
+        connection.write(ascii("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/event-stream\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + (gzip ? "Content-Encoding: gzip\r\n" : "")
+                + "Connection: keep-alive\r\n\r\n"));
+
+        if (settingsOnly) {
+            sseHub.subscribe(settingsChannel, connection, () -> List.of(settingsFrame(engine.settings())), gzip);
+            return true;
+        }
+        String lastEventId = request.header("last-event-id");
+        long lastId = -1;
+        if (lastEventId != null) {
+            try { lastId = Long.parseLong(lastEventId); } catch (NumberFormatException ignored) {}
+        }
+        long resumeFrom = lastId;
+        long since = queryMillis(request, "since");
+        sseHub.subscribe(room.channel(), connection, () -> replayFrames(room.history(), resumeFrom, since), gzip);
+        return true;
+    }
+
+    // An epoch-millis query parameter, or -1 when absent or malformed
+    private static long queryMillis(HttpRequest request, String name) {
+        String value = request.query(name);
+        if (value == null) return -1;
+        try {
+            return Math.max(-1, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The current settings, then the messages a reconnecting client missed, or those sent
+    // since a point in time for a client without a last id (either way the latest snapshot
+    // if there are too many or the gap is no longer in history)
+    private List<SseHub.Frame> replayFrames(MessageHistory messageHistory, long lastId, long sinceMillis) {
+        List<SseHub.Frame> frames = new ArrayList<>();
+        frames.add(settingsFrame(engine.settings()));
+        long latest = messageHistory.latestId();
+        List<ChatMessage> missed;
+        if (lastId < 0) {
+            if (sinceMillis < 0) return frames;
+            missed = messageHistory.between(sinceMillis, Long.MAX_VALUE, REPLAY_MAX + 1);
+            if (missed.size() > REPLAY_MAX) missed = messageHistory.latest(REPLAY_SNAPSHOT);
+        } else if (lastId > latest || lastId < messageHistory.oldestId() - 1 || latest - lastId > REPLAY_MAX) {
+            missed = messageHistory.latest(REPLAY_SNAPSHOT);
+        } else {
+            missed = messageHistory.after(lastId, REPLAY_MAX);
+        }
+        for (ChatMessage m : missed) {
+            frames.add(messageFrame(m));
+        }
+        return frames;
+    }
+
+    // The message as an SSE frame and as a WebSocket message, each encoded once for all subscribers
+    private static SseHub.Frame messageFrame(ChatMessage message) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"sender\":\"").append(escapeJson(message.sender())).append("\",\"text\":\"").append(escapeJson(message.text())).append("\"");
+        if (message.avatar() != null) {
+            json.append(",\"avatar\":\"").append(escapeJson(message.avatar())).append("\"");
+        }
+        if (message.name() != null) {
+            json.append(",\"name\":\"").append(escapeJson(message.name())).append("\"");
+        }
+        json.append("}");
+        return new SseHub.Frame(message.id(), SseHub.encodeFrame("id: " + message.id() + "\ndata: " + json + "\n\n"),
+                WebSocket.textFrame("{\"event\":\"message\",\"id\":" + message.id() + ",\"data\":" + json + "}"));
+    }
+
+    private static void writeNoContent(HttpConnection connection, HttpRequest request) throws IOException {
+        connection.write(ascii("HTTP/1.1 204 No Content\r\n"
+                + "Date: " + HttpDates.now() + "\r\n"
+                + request.connectionHeader()
+                + "Content-Length: 0\r\n\r\n"));
+    }
+
+    private static void writeRedirect(HttpConnection connection, HttpRequest request, String location) throws IOException {
+        connection.write(ascii("HTTP/1.1 302 Found\r\n"
+                + "Date: " + HttpDates.now() + "\r\n"
+                + request.connectionHeader()
+                + "Location: " + location + "\r\n"
+                + "Content-Length: 0\r\n\r\n"));
+    }
+
+    private static void writeText(HttpConnection connection, HttpRequest request, int code, String reason, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String coding = HttpCompression.negotiate(request, contentType, bytes.length);
+        if (coding != null) bytes = HttpCompression.encode(bytes, coding);
+        StringBuilder head = new StringBuilder(160)
+                .append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n")
+                .append("Date: ").append(HttpDates.now()).append("\r\n")
+                .append(request.connectionHeader())
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(bytes.length).append("\r\n");
+        if (coding != null) head.append("Content-Encoding: ").append(coding).append("\r\n");
+        if (HttpCompression.compressible(contentType)) head.append("Vary: Accept-Encoding\r\n");
+        head.append("\r\n");
+        connection.write(ascii(head.toString()), ByteBuffer.wrap(bytes));
+    }
+
+    private static ByteBuffer ascii(String head) {
+        return ByteBuffer.wrap(head.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String parseFormField(String form, String key) {
+        String[] parts = form.split("&");
+        for (String p : parts) {
+            int idx = p.indexOf('=');
+            if (idx > 0) {
+                String k = p.substring(0, idx);
+                String v = p.substring(idx + 1);
+                if (k.equals(key)) return v;
+            }
+        }
+        return null;
+    }
+
+    private static String formValue(String form, String key) {
+        String raw = parseFormField(form, key);
+        return raw == null ? null : urlDecode(raw);
+    }
+
+    private static String urlDecode(String s) {
+        try { return URLDecoder.decode(s, StandardCharsets.UTF_8); } catch (IllegalArgumentException e) { return s; }
+    }
+
+    static String escapeJson(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.toString();
+    }
+}
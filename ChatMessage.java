@@ -0,0 +1,13 @@
+/**
+ * One chat message as stored in {@link MessageHistory}. {@code sender} is the origin
+ * ("phone", "desktop", "system"); {@code name} and {@code avatar} are optional profile fields.
+ * Ids are assigned per room.
+ */
+record ChatMessage(long id, String sender, String name, String avatar, String text, long timestamp, String room) {
+
+    String displayName() {
+        if (name != null) return name;
+        if (sender.isEmpty()) return sender;
+        return Character.toUpperCase(sender.charAt(0)) + sender.substring(1);
+    }
+}
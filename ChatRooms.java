@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * The chat rooms of one server. A room owns its message history, its {@link SseHub.Channel}
+ * of subscribers and a few counters, so posting to a room costs only as much as that room
+ * has subscribers. Transports that fan out on their own (Socket.IO) count their members in
+ * the room instead. Rooms are created on first use and dropped by a sweeper once they have
+ * had no subscribers or members and no activity for the idle timeout; the default room
+ * always exists. A swept room that is used again continues its old id sequence, so its ids
+ * never repeat those already in the journal.
+ */
+final class ChatRooms {
+    static final String DEFAULT = "lobby";
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    static final class Room {
+        private final String name;
+        private final MessageHistory history;
+        private final SseHub.Channel channel = new SseHub.Channel();
+        private final LongAdder posted = new LongAdder();
+        private final AtomicInteger members = new AtomicInteger();
+        private volatile long lastActive = System.currentTimeMillis();
+
+        private Room(String name, int historyCapacity, long lastId) {
+            this.name = name;
+            this.history = new MessageHistory(name, historyCapacity, lastId);
+        }
+
+        String name() {
+            return name;
+        }
+
+        MessageHistory history() {
+            return history;
+        }
+
+        SseHub.Channel channel() {
+            return channel;
+        }
+
+        /** Appends a new message to this room's history; called only by the sequencer. */
+        ChatMessage append(String sender, String name, String avatar, String text) {
+            posted.increment();
+            lastActive = System.currentTimeMillis();
+            return history.append(sender, name, avatar, text);
+        }
+
+        /** Counts a member that receives this room's messages outside its channel. */
+        void join() {
+            members.incrementAndGet();
+            lastActive = System.currentTimeMillis();
+        }
+
+        void leave() {
+            members.decrementAndGet();
+            lastActive = System.currentTimeMillis();
+        }
+
+        int size() {
+            return channel.size() + members.get();
+        }
+
+        long posted() {
+            return posted.sum();
+        }
+
+        long idleMillis(long now) {
+            return now - lastActive;
+        }
+    }
+
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // Rooms in the map; reserved inside compute() so concurrent creates cannot pass the limit
+    private final AtomicInteger roomCount = new AtomicInteger();
+    // Latest id of each swept room that had messages, taken back when the room is recreated
+    private final Map<String, Long> retiredIds = new ConcurrentHashMap<>();
+    private final int historyCapacity;
+    private final int maxRooms;
+    private final long idleMillis;
+
+    ChatRooms(int defaultHistoryCapacity, int historyCapacity, int maxRooms, long idleSeconds) {
+        this.historyCapacity = historyCapacity;
+        this.maxRooms = Math.max(1, maxRooms);
+        this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+        rooms.put(DEFAULT, new Room(DEFAULT, defaultHistoryCapacity, 0));
+        roomCount.set(1);
+        if (idleSeconds > 0) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "room-sweeper");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.min(idleSeconds, 60);
+            sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    static ChatRooms fromConfig() {
+        return new ChatRooms(ChatConfig.getInt("history.capacity", 1024),
+                ChatConfig.getInt("rooms.history.capacity", 256),
+                ChatConfig.getInt("rooms.max", 1000),
+                ChatConfig.getLong("rooms.idle.seconds", 600));
+    }
+
+    /** The room name a request asked for: the default room when absent, null when invalid. */
+    static String nameOf(String requested) {
+        if (requested == null || requested.isEmpty()) return DEFAULT;
+        return NAME.matcher(requested).matches() ? requested : null;
+    }
+
+    /** Returns the room, creating it if needed, or null once the room limit is reached. */
+    Room acquire(String name) {
+        return acquire(name, true);
+    }
+
+    private Room acquire(String name, boolean limited) {
+        // compute() serializes with the sweeper's removal, so a touched room is never dropped
+        return rooms.compute(name, (k, existing) -> {
+            Room r = existing;
+            if (r == null) {
+                if (roomCount.incrementAndGet() > maxRooms && limited) {
+                    roomCount.decrementAndGet();
+                    return null;
+                }
+                Long lastId = retiredIds.remove(k);
+                r = new Room(k, historyCapacity, lastId == null ? 0 : lastId);
+            }
+            r.lastActive = System.currentTimeMillis();
+            return r;
+        });
+    }
+
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    Collection<Room> all() {
+        return rooms.values();
+    }
+
+    /**
+     * Re-inserts a message recovered from the journal into its room. Recovery ignores the
+     * room limit so no journaled message is lost; surplus idle rooms are swept later.
+     */
+    void restore(ChatMessage message) {
+        acquire(message.room(), false).history.restore(message);
+    }
+
+    /** Per-room subscriber and message counts as a JSON array. */
+    String metricsJson() {
+        long now = System.currentTimeMillis();
+        List<Room> snapshot = new ArrayList<>(rooms.values());
+        snapshot.sort((a, b) -> a.name.compareTo(b.name));
+        StringBuilder json = new StringBuilder("[");
+        for (Room room : snapshot) {
+            if (json.length() > 1) json.append(',');
+            json.append("{\"room\":\"").append(room.name)
+                    .append("\",\"subscribers\":").append(room.size())
+                    .append(",\"posted\":").append(room.posted())
+                    .append(",\"latestId\":").append(room.history.latestId())
+                    .append(",\"idleSeconds\":").append(room.idleMillis(now) / 1000)
+                    .append('}');
+        }
+        return json.append(']').toString();
+    }
+
+    /** Drops every room idle past the timeout; runs on the sweeper thread. */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        for (String name : rooms.keySet()) {
+            if (DEFAULT.equals(name)) continue;
+            rooms.computeIfPresent(name, (k, room) -> {
+                if (room.size() > 0 || room.idleMillis(now) < idleMillis) return room;
+                long lastId = room.history.latestId();
+                if (lastId > 0) retiredIds.put(k, lastId);
+                roomCount.decrementAndGet();
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Immutable snapshot of the settings shared by every client. The servers hold the current
+ * snapshot in an AtomicReference, so a read is one volatile load and a change swaps in a
+ * new instance.
+ */
+record ChatSettings(boolean darkMode, boolean soundEnabled, boolean notificationsEnabled, String fontSize) {
+    static final ChatSettings DEFAULTS = new ChatSettings(true, true, true, "medium");
+
+    /** A copy with one setting changed, or null if the setting or value is not recognised. */
+    ChatSettings with(String setting, String value) {
+        switch (setting) {
+            case "darkMode":
+                return new ChatSettings("true".equals(value), soundEnabled, notificationsEnabled, fontSize);
+            case "soundEnabled":
+                return new ChatSettings(darkMode, "true".equals(value), notificationsEnabled, fontSize);
+            case "notificationsEnabled":
+                return new ChatSettings(darkMode, soundEnabled, "true".equals(value), fontSize);
+            case "fontSize":
+                if (!"small".equals(value) && !"medium".equals(value) && !"large".equals(value)) return null;
+                return new ChatSettings(darkMode, soundEnabled, notificationsEnabled, value);
+            default:
+                return null;
+        }
+    }
+
+    String toJson() {
+        return "{\"darkMode\":" + darkMode + ",\"soundEnabled\":" + soundEnabled
+                + ",\"notificationsEnabled\":" + notificationsEnabled + ",\"fontSize\":\"" + fontSize + "\"}";
+    }
+}
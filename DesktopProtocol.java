@@ -0,0 +1,270 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Wire formats of the desktop socket protocol. Text mode is the original one line per
+ * command: {@code MESSAGE:<text>} and {@code USER:<name>} from clients,
+ * {@code MESSAGE:<sender>:<text>} and {@code DISCONNECT} from the server.
+ *
+ * <p>A client opts into binary mode by sending {@link #MAGIC} and the highest version it
+ * speaks as its first two bytes; the server answers with the same two bytes carrying the
+ * version it will use. Every binary frame is a type byte, a varint payload length and the
+ * payload. A MESSAGE payload is a varint-prefixed UTF-8 sender (empty from clients) followed
+ * by the UTF-8 text, so texts may span lines; USER carries a UTF-8 name, DISCONNECT nothing,
+ * and BATCH a run of MESSAGE and USER frames. Frames are encoded straight into one buffer of
+ * the exact size and decoded in place, without intermediate byte arrays.
+ */
+final class DesktopProtocol {
+    /** Not a valid first byte of UTF-8 text, so it cannot start a text-mode line. */
+    static final int MAGIC = 0xAC;
+    static final int VERSION = 1;
+
+    static final int MESSAGE = 1;
+    static final int USER = 2;
+    static final int DISCONNECT = 3;
+    static final int BATCH = 4;
+
+    private static final int MAX_VARINT_BYTES = 5;
+
+    /** Receives decoded commands; a BATCH arrives as its individual commands. */
+    interface Handler {
+        void message(String text);
+
+        void user(String name);
+
+        void disconnect();
+    }
+
+    private DesktopProtocol() {}
+
+    static ByteBuffer hello(int version) {
+        return ByteBuffer.wrap(new byte[] {(byte) MAGIC, (byte) version});
+    }
+
+    // --- text mode ---
+
+    /** All of {@code texts} as {@code MESSAGE:} lines in one buffer; line breaks in a text become spaces. */
+    static ByteBuffer encodeTextMessages(String sender, List<String> texts) {
+        StringBuilder sb = new StringBuilder();
+        for (String text : texts) {
+            sb.append("MESSAGE:").append(sender).append(':');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                sb.append(c == '\n' || c == '\r' ? ' ' : c);
+            }
+            sb.append('\n');
+        }
+        return encodeUtf8(sb);
+    }
+
+    static ByteBuffer encodeTextDisconnect() {
+        return encodeUtf8("DISCONNECT\n");
+    }
+
+    /**
+     * Decodes every complete line in {@code in}, leaving it positioned at the unfinished rest.
+     * Stops after a DISCONNECT.
+     */
+    static void decodeText(ByteBuffer in, Handler handler) {
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) != '\n') continue;
+            int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+            String line = new String(in.array(), in.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            in.position(start);
+            if (line.startsWith("MESSAGE:")) {
+                handler.message(line.substring(8));
+            } else if (line.startsWith("USER:")) {
+                handler.user(line.substring(5));
+            } else if (line.equals("DISCONNECT")) {
+                handler.disconnect();
+                return;
+            }
+        }
+        in.position(start);
+    }
+
+    // --- binary mode ---
+
+    /** One MESSAGE frame, or a BATCH of them when there are several texts. */
+    static ByteBuffer encodeMessages(String sender, List<String> texts) {
+        int senderBytes = utf8Length(sender);
+        int[] payloads = new int[texts.size()];
+        int inner = 0;
+        for (int i = 0; i < texts.size(); i++) {
+            payloads[i] = varintSize(senderBytes) + senderBytes + utf8Length(texts.get(i));
+            inner += 1 + varintSize(payloads[i]) + payloads[i];
+        }
+        boolean batch = texts.size() > 1;
+        ByteBuffer out = ByteBuffer.allocate(batch ? 1 + varintSize(inner) + inner : inner);
+        if (batch) {
+            out.put((byte) BATCH);
+            putVarint(out, inner);
+        }
+        for (int i = 0; i < texts.size(); i++) {
+            out.put((byte) MESSAGE);
+            putVarint(out, payloads[i]);
+            putVarint(out, senderBytes);
+            putUtf8(out, sender);
+            putUtf8(out, texts.get(i));
+        }
+        return out.flip();
+    }
+
+    static ByteBuffer encodeDisconnect() {
+        return ByteBuffer.wrap(new byte[] {(byte) DISCONNECT, 0});
+    }
+
+    /**
+     * Decodes every complete frame in {@code in}, leaving it positioned at the first incomplete
+     * one. Throws IllegalArgumentException for a frame longer than {@code maxFrameBytes} or one
+     * that does not parse; unknown frame types are skipped.
+     */
+    static void decode(ByteBuffer in, int maxFrameBytes, Handler handler) {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int type = in.get() & 0xFF;
+            int length = getVarint(in);
+            if (length < 0 || in.remaining() < length) {
+                if (length > maxFrameBytes) throw new IllegalArgumentException("Frame too long");
+                in.position(start);
+                return;
+            }
+            if (length > maxFrameBytes) throw new IllegalArgumentException("Frame too long");
+            int end = in.position() + length;
+            if (type == BATCH) {
+                ByteBuffer frames = in.duplicate().limit(end);
+                while (frames.hasRemaining()) {
+                    int innerType = frames.get() & 0xFF;
+                    int innerLength = getVarint(frames);
+                    if (innerLength < 0 || innerLength > frames.remaining() || innerType == BATCH) {
+                        throw new IllegalArgumentException("Bad batch");
+                    }
+                    int innerEnd = frames.position() + innerLength;
+                    if (!dispatch(innerType, frames, innerEnd, handler)) {
+                        in.position(end);
+                        return;
+                    }
+                    frames.position(innerEnd);
+                }
+            } else if (!dispatch(type, in, end, handler)) {
+                in.position(end);
+                return;
+            }
+            in.position(end);
+        }
+    }
+
+    // Returns false once the frame asked for the connection to end
+    private static boolean dispatch(int type, ByteBuffer in, int end, Handler handler) {
+        switch (type) {
+            case MESSAGE:
+                int senderBytes = getVarint(in);
+                if (senderBytes < 0 || in.position() + senderBytes > end) throw new IllegalArgumentException("Bad message");
+                in.position(in.position() + senderBytes);
+                handler.message(utf8(in, end));
+                return true;
+            case USER:
+                handler.user(utf8(in, end));
+                return true;
+            case DISCONNECT:
+                handler.disconnect();
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static String utf8(ByteBuffer in, int end) {
+        return new String(in.array(), in.arrayOffset() + in.position(), end - in.position(), StandardCharsets.UTF_8);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /** The next varint, or -1 (position unchanged) if it is not complete yet. */
+    static int getVarint(ByteBuffer in) {
+        int start = in.position();
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (!in.hasRemaining()) {
+                in.position(start);
+                return -1;
+            }
+            int b = in.get();
+            // The fifth byte carries bits 28-31; anything higher would be shifted away silently
+            if (i == MAX_VARINT_BYTES - 1 && (b & 0x70) != 0) throw new IllegalArgumentException("Varint out of range");
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                if (value < 0) throw new IllegalArgumentException("Varint out of range");
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /** Bytes {@link #putUtf8} writes for {@code s}; unpaired surrogates count as one byte. */
+    static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /** Writes {@code s} as UTF-8; unpaired surrogates become '?'. */
+    static void putUtf8(ByteBuffer out, CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static ByteBuffer encodeUtf8(CharSequence s) {
+        ByteBuffer out = ByteBuffer.allocate(utf8Length(s));
+        putUtf8(out, s);
+        return out.flip();
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Server side of the Engine.IO v4 transport under {@code /socket.io/}: HTTP long-polling,
+ * WebSocket, and the upgrade from one to the other. Every socket owns a bounded queue of
+ * outgoing packets. On WebSocket it is drained on the writer pool like an SSE subscriber;
+ * on polling it waits for the client's next GET, which is parked without holding a thread
+ * and handed back to the server's request loop once answered. The server pings every
+ * socket each ping interval and drops those that did not answer the previous ping.
+ * Binary packets are not supported.
+ */
+final class EngineIo {
+    /** What the layer above (Socket.IO) sees of the transport. */
+    interface Handler {
+        void onOpen(Socket socket);
+
+        /** The payload of a message packet (type 4), without the type. */
+        void onMessage(Socket socket, String data);
+
+        /** The socket is gone; called once. */
+        void onClose(Socket socket, String reason);
+    }
+
+    private static final char SEPARATOR = '\u001e';
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Map<String, Socket> sockets = new ConcurrentHashMap<>();
+    private final Handler handler;
+    private final Consumer<HttpConnection> resume;
+    private final long pingIntervalMillis;
+    private final long pingTimeoutMillis;
+    private final int queueCapacity;
+    private final ExecutorService writers;
+
+    /**
+     * {@code resume} hands a connection whose parked poll has been answered back to the
+     * server's request loop.
+     */
+    EngineIo(Handler handler, Consumer<HttpConnection> resume, long pingIntervalMillis, long pingTimeoutMillis, int queueCapacity) {
+        this.handler = handler;
+        this.resume = resume;
+        this.pingIntervalMillis = Math.max(1000, pingIntervalMillis);
+        this.pingTimeoutMillis = pingTimeoutMillis;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        AtomicInteger counter = new AtomicInteger();
+        this.writers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "engineio-writer-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ScheduledExecutorService pinger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "engineio-ping");
+            t.setDaemon(true);
+            return t;
+        });
+        pinger.scheduleAtFixedRate(this::ping, this.pingIntervalMillis, this.pingIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static EngineIo fromConfig(Handler handler, Consumer<HttpConnection> resume) {
+        return new EngineIo(handler, resume,
+                ChatConfig.getLong("socketio.ping.interval.millis", 25000),
+                ChatConfig.getLong("socketio.ping.timeout.millis", 20000),
+                ChatConfig.getInt("socketio.queue", 256));
+    }
+
+    /** A random URL-safe id, as used for sockets and chat sessions. */
+    static String newId() {
+        byte[] bytes = new byte[15];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    int size() {
+        return sockets.size();
+    }
+
+    /** Serves one request under {@code /socket.io/}; returns true if the connection was taken over. */
+    boolean handle(HttpConnection connection, HttpRequest request) throws IOException {
+        if (!"4".equals(request.query("EIO"))) {
+            return fail(connection, request, 5, "Unsupported protocol version");
+        }
+        String transport = request.query("transport");
+        String sid = request.query("sid");
+        if ("websocket".equals(transport)) {
+            if (!WebSocket.isUpgrade(request)) return fail(connection, request, 3, "Bad request");
+            return sid == null ? openWebSocket(connection, request) : probeWebSocket(connection, request, sid);
+        }
+        if (!"polling".equals(transport)) return fail(connection, request, 0, "Transport unknown");
+        if (sid == null) {
+            if (!"GET".equals(request.method())) return fail(connection, request, 2, "Bad handshake method");
+            Socket socket = new Socket();
+            sockets.put(socket.id, socket);
+            respond(connection, request, 200, "OK", "0" + socket.openJson(true));
+            handler.onOpen(socket);
+            return false;
+        }
+        Socket socket = sockets.get(sid);
+        if (socket == null) return fail(connection, request, 1, "Session ID unknown");
+        if ("GET".equals(request.method())) return socket.poll(connection, request);
+        if (!"POST".equals(request.method())) return fail(connection, request, 2, "Bad request method");
+        byte[] body = request.body();
+        if (body.length > WebSocket.MAX_MESSAGE_BYTES) {
+            socket.close("payload too large");
+            respond(connection, request, 413, "Payload Too Large", "");
+            return false;
+        }
+        // Answered before the packets are handled, so events emitted back to this socket go out on its poll
+        respond(connection, request, 200, "OK", "ok");
+        String payload = new String(body, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start <= payload.length()) {
+            int end = payload.indexOf(SEPARATOR, start);
+            if (end < 0) end = payload.length();
+            if (end > start) socket.receive(payload.substring(start, end));
+            start = end + 1;
+        }
+        return false;
+    }
+
+    // A client that starts on WebSocket: the open packet is its first message
+    private boolean openWebSocket(HttpConnection connection, HttpRequest request) throws IOException {
+        Socket socket = new Socket();
+        connection.write(WebSocket.handshake(request));
+        WebSocket webSocket = new WebSocket(connection, socket.listener());
+        socket.upgraded(connection, webSocket, "0" + socket.openJson(false));
+        sockets.put(socket.id, socket);
+        handler.onOpen(socket);
+        connection.upgrade(webSocket);
+        return true;
+    }
+
+    // A polling client trying WebSocket: it sends "2probe", gets "3probe", then switches with "5"
+    private boolean probeWebSocket(HttpConnection connection, HttpRequest request, String sid) throws IOException {
+        Socket socket = sockets.get(sid);
+        if (socket == null) return fail(connection, request, 1, "Session ID unknown");
+        if (socket.isUpgraded()) return fail(connection, request, 3, "Already upgraded");
+        connection.write(WebSocket.handshake(request));
+        connection.upgrade(new WebSocket(connection, socket.prober(connection)));
+        return true;
+    }
+
+    private void ping() {
+        for (Socket socket : sockets.values()) {
+            if (socket.awaitingPong && System.currentTimeMillis() - socket.pingSent >= pingTimeoutMillis) {
+                socket.close("ping timeout");
+                continue;
+            }
+            socket.awaitingPong = true;
+            socket.pingSent = System.currentTimeMillis();
+            socket.sendPacket("2");
+        }
+    }
+
+    private static boolean fail(HttpConnection connection, HttpRequest request, int code, String message) throws IOException {
+        respond(connection, request, 400, "Bad Request", "application/json", "{\"code\":" + code + ",\"message\":" + Json.quote(message) + "}");
+        return false;
+    }
+
+    private static void respond(HttpConnection connection, HttpRequest request, int code, String reason, String body) throws IOException {
+        respond(connection, request, code, reason, "text/plain; charset=UTF-8", body);
+    }
+
+    private static void respond(HttpConnection connection, HttpRequest request, int code, String reason, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        String coding = HttpCompression.negotiate(request, contentType, bytes.length);
+        if (coding != null) bytes = HttpCompression.encode(bytes, coding);
+        StringBuilder head = new StringBuilder(160)
+                .append("HTTP/1.1 ").append(code).append(' ').append(reason).append("\r\n")
+                .append("Date: ").append(HttpDates.now()).append("\r\n")
+                .append(request.connectionHeader())
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(bytes.length).append("\r\n")
+                .append("Cache-Control: no-store\r\n");
+        if (coding != null) head.append("Content-Encoding: ").append(coding).append("\r\n");
+        if (HttpCompression.compressible(contentType)) head.append("Vary: Accept-Encoding\r\n");
+        head.append("\r\n");
+        connection.write(ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.US_ASCII)), ByteBuffer.wrap(bytes));
+    }
+
+    /** One Engine.IO session, on polling or (after the upgrade) on a WebSocket. */
+    final class Socket {
+        private final String id = newId();
+        private final ArrayDeque<String> queue = new ArrayDeque<>();
+        // Set while a GET waits for packets (polling only)
+        private HttpConnection pollConnection;
+        private HttpRequest pollRequest;
+        private HttpConnection wsConnection;
+        private WebSocket webSocket;
+        private boolean draining;
+        private boolean closed;
+        private volatile boolean awaitingPong;
+        private volatile long pingSent;
+
+        String id() {
+            return id;
+        }
+
+        /** Queues a message packet carrying {@code data}. */
+        void send(String data) {
+            sendPacket("4" + data);
+        }
+
+        /** Closes the session, telling the client if the transport still allows it. */
+        void close(String reason) {
+            HttpConnection poll;
+            HttpRequest request;
+            WebSocket ws;
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                queue.clear();
+                poll = pollConnection;
+                request = pollRequest;
+                pollConnection = null;
+                pollRequest = null;
+                ws = webSocket;
+            }
+            sockets.remove(id, this);
+            if (poll != null) answerPoll(poll, request, List.of("1"));
+            if (ws != null) ws.close(1000, "");
+            handler.onClose(this, reason);
+        }
+
+        private String openJson(boolean upgradable) {
+            return "{\"sid\":\"" + id + "\",\"upgrades\":[" + (upgradable ? "\"websocket\"" : "") + "]"
+                    + ",\"pingInterval\":" + pingIntervalMillis
+                    + ",\"pingTimeout\":" + pingTimeoutMillis
+                    + ",\"maxPayload\":" + WebSocket.MAX_MESSAGE_BYTES + "}";
+        }
+
+        private void sendPacket(String packet) {
+            boolean schedule = false;
+            boolean full = false;
+            synchronized (this) {
+                if (closed) return;
+                if (queue.size() >= queueCapacity) {
+                    full = true;
+                } else {
+                    queue.add(packet);
+                    schedule = !draining && (webSocket != null || pollConnection != null);
+                    if (schedule) draining = true;
+                }
+            }
+            if (full) {
+                // A client this far behind is gone or stuck; it reconnects with a fresh session.
+                // Closed off this thread, since callers may hold locks the close handler needs.
+                writers.execute(() -> close("queue full"));
+            } else if (schedule) {
+                writers.execute(this::drain);
+            }
+        }
+
+        private synchronized boolean isUpgraded() {
+            return webSocket != null;
+        }
+
+        // A GET on the polling transport: answered at once if packets are waiting, else parked
+        private boolean poll(HttpConnection connection, HttpRequest request) throws IOException {
+            List<String> packets;
+            synchronized (this) {
+                if (closed) {
+                    packets = List.of("1");
+                } else if (webSocket != null || pollConnection != null) {
+                    packets = null;
+                } else if (queue.isEmpty()) {
+                    pollConnection = connection;
+                    pollRequest = request;
+                    return true;
+                } else {
+                    packets = new ArrayList<>(queue);
+                    queue.clear();
+                }
+            }
+            if (packets == null) {
+                // Overlapping polls, or polling after the upgrade, break the protocol
+                close("bad poll");
+                return fail(connection, request, 3, "Bad request");
+            }
+            respond(connection, request, 200, "OK", join(packets));
+            return false;
+        }
+
+        private void drain() {
+            while (true) {
+                List<String> packets;
+                HttpConnection poll = null;
+                HttpRequest request = null;
+                HttpConnection ws;
+                synchronized (this) {
+                    ws = wsConnection;
+                    if (closed || queue.isEmpty() || (ws == null && pollConnection == null)) {
+                        draining = false;
+                        return;
+                    }
+                    packets = new ArrayList<>(queue);
+                    queue.clear();
+                    if (ws == null) {
+                        poll = pollConnection;
+                        request = pollRequest;
+                        pollConnection = null;
+                        pollRequest = null;
+                    }
+                }
+                if (ws != null) {
+                    ByteBuffer[] frames = new ByteBuffer[packets.size()];
+                    for (int i = 0; i < frames.length; i++) frames[i] = WebSocket.textFrame(packets.get(i));
+                    try {
+                        ws.write(frames);
+                    } catch (IOException e) {
+                        synchronized (this) {
+                            draining = false;
+                        }
+                        close("transport error");
+                        return;
+                    }
+                } else {
+                    answerPoll(poll, request, packets);
+                }
+            }
+        }
+
+        private void answerPoll(HttpConnection connection, HttpRequest request, List<String> packets) {
+            try {
+                respond(connection, request, 200, "OK", join(packets));
+                if (request.keepAlive()) {
+                    resume.accept(connection);
+                    return;
+                }
+            } catch (IOException ignored) {
+                // the client polls again on a new connection and the ping timeout covers a dead one
+            }
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void receive(String packet) {
+            switch (packet.charAt(0)) {
+                case '1':
+                    close("client close");
+                    break;
+                case '2':
+                    sendPacket("3" + packet.substring(1));
+                    break;
+                case '3':
+                    awaitingPong = false;
+                    break;
+                case '4':
+                    handler.onMessage(this, packet.substring(1));
+                    break;
+                default:
+                    // upgrade (5) only counts on the probe socket; noop (6) and binary are ignored
+                    break;
+            }
+        }
+
+        // Switches the session to a WebSocket; a parked poll is released with a noop
+        private void upgraded(HttpConnection connection, WebSocket ws, String firstPacket) {
+            HttpConnection poll;
+            HttpRequest request;
+            boolean schedule;
+            synchronized (this) {
+                if (closed) {
+                    ws.close(1000, "");
+                    return;
+                }
+                if (firstPacket != null) queue.addFirst(firstPacket);
+                wsConnection = connection;
+                webSocket = ws;
+                poll = pollConnection;
+                request = pollRequest;
+                pollConnection = null;
+                pollRequest = null;
+                schedule = !draining && !queue.isEmpty();
+                if (schedule) draining = true;
+            }
+            if (poll != null) answerPoll(poll, request, List.of("6"));
+            if (schedule) writers.execute(this::drain);
+        }
+
+        private WebSocket.Listener listener() {
+            return new WebSocket.Listener() {
+                @Override
+                public void onText(WebSocket socket, String text) {
+                    if (!text.isEmpty()) receive(text);
+                }
+
+                @Override
+                public void onClose(WebSocket socket) {
+                    close("transport close");
+                }
+            };
+        }
+
+        private WebSocket.Listener prober(HttpConnection connection) {
+            return new WebSocket.Listener() {
+                private boolean upgraded;
+
+                @Override
+                public void onText(WebSocket socket, String text) {
+                    if (text.isEmpty()) return;
+                    if (upgraded) {
+                        receive(text);
+                    } else if ("2probe".equals(text)) {
+                        try {
+                            socket.sendText("3probe");
+                        } catch (IOException e) {
+                            socket.close(1011, "");
+                        }
+                    } else if ("5".equals(text)) {
+                        upgraded = true;
+                        upgraded(connection, socket, null);
+                    }
+                }
+
+                @Override
+                public void onClose(WebSocket socket) {
+                    // A failed probe leaves the session on polling
+                    if (upgraded) close("transport close");
+                }
+            };
+        }
+    }
+
+    private static String join(List<String> packets) {
+        if (packets.size() == 1) return packets.get(0);
+        StringBuilder sb = new StringBuilder();
+        for (String p : packets) {
+            if (sb.length() > 0) sb.append(SEPARATOR);
+            sb.append(p);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-coding negotiation and encoders shared by the response paths. Bodies below
+ * {@link #MIN_BYTES} or of already-compressed types are sent as is.
+ */
+final class HttpCompression {
+    static final int MIN_BYTES = ChatConfig.getInt("http.compress.minBytes", 1024);
+    private static final boolean ENABLED = ChatConfig.getBoolean("http.compress", true);
+    private static final int LEVEL = ChatConfig.getInt("http.compress.level", 6);
+
+    private HttpCompression() {}
+
+    /** The coding to use for a response: "gzip", "deflate", or null for identity. */
+    static String negotiate(HttpRequest request, String contentType, int length) {
+        if (!ENABLED || length < MIN_BYTES || !compressible(contentType)) return null;
+        if (request.acceptsEncoding("gzip")) return "gzip";
+        if (request.acceptsEncoding("deflate")) return "deflate";
+        return null;
+    }
+
+    static boolean compressible(String contentType) {
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.startsWith("application/json")
+                || type.startsWith("application/javascript") || type.startsWith("image/svg+xml");
+    }
+
+    static byte[] encode(byte[] data, String coding) {
+        return encode(data, coding, LEVEL);
+    }
+
+    static byte[] encode(byte[] data, String coding, int level) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        try {
+            if ("gzip".equals(coding)) {
+                try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+                    {
+                        def.setLevel(level);
+                    }
+                }) {
+                    gzip.write(data);
+                }
+            } else {
+                // "deflate" is the zlib format (RFC 1950), which is what Deflater produces by default
+                Deflater deflater = new Deflater(level);
+                try (DeflaterOutputStream zlib = new DeflaterOutputStream(out, deflater)) {
+                    zlib.write(data);
+                } finally {
+                    deflater.end();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A gzip stream for one long-lived response (an event stream). Every call to
+     * {@link #compress} sync-flushes, so each batch can be decoded as soon as it arrives
+     * while still sharing the dictionary with everything sent before it.
+     */
+    static final class SyncFlushGzip {
+        private final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        private final GZIPOutputStream out;
+        private final byte[] scratch = new byte[8192];
+        private boolean closed;
+
+        SyncFlushGzip() {
+            try {
+                out = new GZIPOutputStream(sink, 8192, true);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        synchronized ByteBuffer compress(ByteBuffer[] frames) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            for (ByteBuffer frame : frames) {
+                // Frames are shared read-only buffers, so copy out through a scratch array
+                ByteBuffer view = frame.duplicate();
+                while (view.hasRemaining()) {
+                    int n = Math.min(scratch.length, view.remaining());
+                    view.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+            }
+            out.flush();
+            ByteBuffer compressed = ByteBuffer.wrap(sink.toByteArray());
+            sink.reset();
+            return compressed;
+        }
+
+        /** Releases the native deflater; the stream is abandoned, not finished. */
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
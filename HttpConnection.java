@@ -0,0 +1,68 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One client connection as seen by the request routing code, independent of whether
+ * it is served by the legacy thread-per-connection engine or {@link NioHttpEngine}.
+ */
+interface HttpConnection extends Closeable {
+    /** A protocol that took the connection over from HTTP (see {@link #upgrade}). */
+    interface Protocol {
+        /** Bytes received from the peer, in order; called from one thread at a time. */
+        void onData(ByteBuffer data) throws IOException;
+
+        /** The connection is gone; called once. */
+        void onClose();
+    }
+
+    /**
+     * Returns the next request on this connection, or null when there is none to serve
+     * right now: the peer hung up (blocking) or everything buffered was handed out (NIO).
+     */
+    HttpRequest readRequest() throws IOException;
+
+    OutputStream output();
+
+    /**
+     * Writes every buffer in order and flushes. Buffers may be shared with other
+     * connections, so implementations consume them but never modify their contents.
+     */
+    void write(ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Sends {@code count} bytes of {@code file} from {@code position} after everything
+     * written so far, letting the kernel copy them where it can (sendfile). The connection
+     * takes ownership of the channel and closes it once the region is sent or dropped.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Returns true if everything written so far has been handed to the socket. Otherwise
+     * returns false and runs {@code then} once it has, or once the connection is closed.
+     * Blocking connections always return true: their writes return only when done.
+     */
+    boolean whenWritten(Runnable then);
+
+    /** Counts a request served on this connection and returns its 1-based number. */
+    int nextRequest();
+
+    /**
+     * Called when {@link #readRequest()} returned null after a keep-alive response. Returns
+     * true if the connection will hand later requests to the handler again (NIO), false if
+     * end of input means the peer is gone and it should be closed.
+     */
+    boolean resumeReading();
+
+    /**
+     * Hands the connection to {@code protocol} once the handler has written its 101
+     * response: bytes the peer sent after the upgrade request and everything that arrives
+     * later go to {@link Protocol#onData}. Returns at once: the blocking engine reads on a
+     * thread of its own until the peer leaves, NIO delivers data on the event loop, so the
+     * protocol must never block. Either way the handler must then leave the
+     * connection open, as it does for an event stream.
+     */
+    void upgrade(Protocol protocol) throws IOException;
+}
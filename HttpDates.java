@@ -0,0 +1,32 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+// IMF-fixdate formatting and parsing for Date, Last-Modified and If-Modified-Since
+final class HttpDates {
+    // RFC_1123_DATE_TIME does not zero-pad the day, which IMF-fixdate requires
+    private static final DateTimeFormatter FIXDATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+    private HttpDates() {}
+
+    static String format(long epochMillis) {
+        return FIXDATE.format(Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC));
+    }
+
+    static String now() {
+        return format(System.currentTimeMillis());
+    }
+
+    /** Returns the epoch millis of an HTTP date, or -1 if it cannot be parsed. */
+    static long parse(String value) {
+        if (value == null) return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
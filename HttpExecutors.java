@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs HTTP handlers, chosen by the {@code http.executor} key:
+ * {@code virtual} (one virtual thread per connection, JDK 21+), {@code pool} (bounded
+ * platform pool with a bounded queue; overflow is rejected with 503) or {@code auto}
+ * (virtual when the runtime supports it, otherwise pool).
+ */
+final class HttpExecutors {
+    private static final byte[] SERVICE_UNAVAILABLE = ("HTTP/1.1 503 Service Unavailable\r\n" +
+            "Retry-After: 1\r\n" +
+            "Content-Length: 0\r\n" +
+            "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private HttpExecutors() {}
+
+    static ExecutorService fromConfig() {
+        String mode = ChatConfig.get("http.executor", "auto");
+        if (!"pool".equalsIgnoreCase(mode)) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                System.out.println("HTTP handlers: virtual threads");
+                return virtual;
+            }
+            if ("virtual".equalsIgnoreCase(mode)) {
+                System.err.println("Virtual threads need JDK 21+, falling back to a bounded pool");
+            }
+        }
+        int threads = ChatConfig.getInt("http.pool.threads", 64);
+        int queue = ChatConfig.getInt("http.pool.queue", 256);
+        System.out.println("HTTP handlers: pool of " + threads + " threads, queue " + queue);
+        return newBoundedPool(threads, queue);
+    }
+
+    static ExecutorService newBoundedPool(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "http-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), factory, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up reflectively so the code still compiles on JDK 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static void rejectConnection(Socket socket) {
+        try (socket) {
+            writeServiceUnavailable(socket.getOutputStream());
+        } catch (IOException ignored) {
+        }
+    }
+
+    static void writeServiceUnavailable(OutputStream out) throws IOException {
+        out.write(SERVICE_UNAVAILABLE);
+        out.flush();
+    }
+}
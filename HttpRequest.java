@@ -0,0 +1,113 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * One parsed HTTP request as produced by {@link HttpRequestParser}: method, target, a
+ * copy of the raw head with header offsets, and the body. Header values are decoded
+ * only when looked up. Also carries the keep-alive decision so every response on the
+ * connection can announce it.
+ */
+final class HttpRequest {
+    static final byte[] NO_BODY = new byte[0];
+
+    private final String method;
+    private final String target;
+    private final boolean http11;
+    private final byte[] head;
+    private final int[] headers;
+    private final byte[] body;
+    private boolean keepAlive;
+
+    HttpRequest(String method, String target, boolean http11, byte[] head, int[] headers, byte[] body) {
+        this.method = method;
+        this.target = target;
+        this.http11 = http11;
+        this.head = head;
+        this.headers = headers;
+        this.body = body;
+        String connection = header("connection");
+        String token = connection == null ? "" : connection.toLowerCase(Locale.ROOT);
+        this.keepAlive = http11 ? !token.contains("close") : token.contains("keep-alive");
+    }
+
+    String method() {
+        return method;
+    }
+
+    /** The request target as sent, including any query string. */
+    String target() {
+        return target;
+    }
+
+    /** The request target without its query string. */
+    String path() {
+        int q = target.indexOf('?');
+        return q < 0 ? target : target.substring(0, q);
+    }
+
+    /** The raw (still URL-encoded) value of a query parameter, or null. */
+    String query(String name) {
+        int q = target.indexOf('?');
+        if (q < 0) return null;
+        for (String pair : target.substring(q + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) return eq < 0 ? "" : pair.substring(eq + 1);
+        }
+        return null;
+    }
+
+    String version() {
+        return http11 ? "HTTP/1.1" : "HTTP/1.0";
+    }
+
+    /** Value of the first header with this (lower-case) name, or null. */
+    String header(String lowerCaseName) {
+        byte[] name = lowerCaseName.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < headers.length; i += 4) {
+            if (HttpRequestParser.equalsIgnoreCase(head, headers[i], headers[i + 1], name)) {
+                return new String(head, headers[i + 2], headers[i + 3] - headers[i + 2], StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /** True if Accept-Encoding lists {@code coding} (or *) without q=0. */
+    boolean acceptsEncoding(String coding) {
+        String accept = header("accept-encoding");
+        if (accept == null) return false;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase(coding) && !"*".equals(name)) continue;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        if (Double.parseDouble(p.substring(2)) <= 0) return false;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    byte[] body() {
+        return body;
+    }
+
+    boolean keepAlive() {
+        return keepAlive;
+    }
+
+    void closeAfterResponse() {
+        keepAlive = false;
+    }
+
+    /** The Connection header line (with CRLF) every response to this request carries. */
+    String connectionHeader() {
+        return keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n";
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser over one reusable buffer per connection. Callers
+ * append bytes with {@link #buffer()} and pull complete requests with {@link #parse()};
+ * a head is scanned once at the byte level, resuming where the previous read stopped,
+ * and only the request target is turned into a String up front. Header values stay
+ * as offsets into a copy of the head until someone asks for them.
+ *
+ * <p>Used directly by {@link NioHttpEngine} and through {@link #read(InputStream)} by
+ * blocking connections.
+ */
+final class HttpRequestParser {
+    static final int MAX_HEAD_BYTES = ChatConfig.getInt("http.max.head.bytes", 16 * 1024);
+    static final int MAX_HEADERS = ChatConfig.getInt("http.max.headers", 100);
+    static final int MAX_BODY_BYTES = ChatConfig.getInt("http.max.body.bytes", 1024 * 1024);
+
+    private static final String[] METHODS = {"GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS"};
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.US_ASCII);
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_BYTES[i] = METHODS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /** A request that cannot be parsed; carries the status the connection answers with before closing. */
+    static final class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final String reason;
+
+        ParseException(int status, String reason) {
+            super(status + " " + reason);
+            this.status = status;
+            this.reason = reason;
+        }
+
+        ByteBuffer response() {
+            return ByteBuffer.wrap(("HTTP/1.1 " + status + " " + reason + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    // Data lives in [start, buffer.position()); the buffer stays in write mode between calls
+    private ByteBuffer buffer;
+    private int start;
+    private int scan;
+    // Parsed head of a request whose body has not fully arrived yet (headEnd < 0 when none)
+    private int headEnd = -1;
+    private int contentLength;
+    private final int[] lines = new int[(MAX_HEADERS + 1) * 4];
+    private int headerCount;
+
+    HttpRequestParser() {
+        this(1024);
+    }
+
+    HttpRequestParser(int initialCapacity) {
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * Returns the buffer to read more bytes into, compacting or growing it when it is full.
+     * Fails once a single request would exceed the head and body limits.
+     */
+    ByteBuffer buffer() throws ParseException {
+        if (buffer.hasRemaining()) return buffer;
+        if (start > 0) {
+            int shift = start;
+            buffer.flip().position(shift);
+            buffer.compact();
+            start = 0;
+            scan -= shift;
+            if (headEnd >= 0) {
+                headEnd -= shift;
+                for (int i = 0; i < (headerCount + 1) * 4; i++) lines[i] -= shift;
+            }
+            return buffer;
+        }
+        int max = MAX_HEAD_BYTES + MAX_BODY_BYTES;
+        if (buffer.capacity() >= max) throw new ParseException(413, "Payload Too Large");
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(max, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+        return buffer;
+    }
+
+    /** True if {@link #buffer()} would have to grow, because no parsed request can be compacted away. */
+    boolean isFull() {
+        return !buffer.hasRemaining() && start == 0;
+    }
+
+    /** True if part of a request has been received but not yet returned by {@link #parse()}. */
+    boolean hasPartialRequest() {
+        return buffer.position() > start;
+    }
+
+    /** Returns the next complete request, or null until more bytes arrive. */
+    HttpRequest parse() throws ParseException {
+        byte[] buf = buffer.array();
+        int limit = buffer.position();
+        if (headEnd < 0) {
+            // Tolerate stray CRLFs between pipelined requests
+            while (start < limit && (buf[start] == '\r' || buf[start] == '\n')) start++;
+            if (scan < start) scan = start;
+            int end = findHeadEnd(buf, Math.max(start, scan - 3), limit);
+            if (end < 0) {
+                scan = limit;
+                if (limit - start > MAX_HEAD_BYTES) throw new ParseException(431, "Request Header Fields Too Large");
+                compactIfDrained();
+                return null;
+            }
+            if (end - start > MAX_HEAD_BYTES) throw new ParseException(431, "Request Header Fields Too Large");
+            parseHead(buf, start, end);
+            headEnd = end;
+        }
+        if (limit - headEnd < contentLength) {
+            if (buffer.capacity() - start < headEnd - start + contentLength) {
+                // Grow once to fit the whole body rather than doubling repeatedly
+                ByteBuffer bigger = ByteBuffer.allocate(headEnd - start + contentLength);
+                buffer.flip().position(start);
+                bigger.put(buffer);
+                int shift = start;
+                buffer = bigger;
+                start = 0;
+                headEnd -= shift;
+                scan -= shift;
+                for (int i = 0; i < (headerCount + 1) * 4; i++) lines[i] -= shift;
+            }
+            return null;
+        }
+
+        HttpRequest request = buildRequest(buf);
+        start = headEnd + contentLength;
+        scan = start;
+        headEnd = -1;
+        compactIfDrained();
+        return request;
+    }
+
+    /**
+     * Blocking convenience: reads from {@code in} until a request is complete. Returns null
+     * if the stream ends cleanly between requests.
+     */
+    HttpRequest read(InputStream in) throws IOException {
+        while (true) {
+            HttpRequest request = parse();
+            if (request != null) return request;
+            ByteBuffer b = buffer();
+            int n = in.read(b.array(), b.position(), b.remaining());
+            if (n < 0) {
+                if (hasPartialRequest()) throw new IOException("Connection closed mid-request");
+                return null;
+            }
+            b.position(b.position() + n);
+        }
+    }
+
+    /** Removes and returns the bytes received after the last parsed request (for a protocol switch). */
+    ByteBuffer drain() {
+        ByteBuffer rest = ByteBuffer.wrap(Arrays.copyOfRange(buffer.array(), start, buffer.position()));
+        start = buffer.position();
+        headEnd = -1;
+        compactIfDrained();
+        return rest;
+    }
+
+    private void compactIfDrained() {
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = 0;
+            scan = 0;
+        }
+    }
+
+    // lines[0..3] hold the request line (method end, target start, target end, line end),
+    // then each header has (name start, name end, value start, value end)
+    private void parseHead(byte[] buf, int from, int end) throws ParseException {
+        int lineEnd = indexOf(buf, from, end, (byte) '\r');
+        int sp1 = indexOf(buf, from, lineEnd, (byte) ' ');
+        if (sp1 <= from) throw new ParseException(400, "Bad Request");
+        int sp2 = indexOf(buf, sp1 + 1, lineEnd, (byte) ' ');
+        if (sp2 < 0) sp2 = lineEnd;
+        if (sp2 == sp1 + 1) throw new ParseException(400, "Bad Request");
+        lines[0] = sp1;
+        lines[1] = sp1 + 1;
+        lines[2] = sp2;
+        lines[3] = lineEnd;
+
+        headerCount = 0;
+        contentLength = 0;
+        int p = lineEnd + 2;
+        while (p < end - 2) {
+            int eol = indexOf(buf, p, end, (byte) '\r');
+            int colon = indexOf(buf, p, eol, (byte) ':');
+            if (colon > p) {
+                if (headerCount == MAX_HEADERS) throw new ParseException(431, "Request Header Fields Too Large");
+                int vs = colon + 1;
+                int ve = eol;
+                while (vs < ve && (buf[vs] == ' ' || buf[vs] == '\t')) vs++;
+                while (ve > vs && (buf[ve - 1] == ' ' || buf[ve - 1] == '\t')) ve--;
+                int base = (headerCount + 1) * 4;
+                lines[base] = p;
+                lines[base + 1] = colon;
+                lines[base + 2] = vs;
+                lines[base + 3] = ve;
+                headerCount++;
+                if (equalsIgnoreCase(buf, p, colon, CONTENT_LENGTH)) {
+                    contentLength = parseLength(buf, vs, ve);
+                } else if (equalsIgnoreCase(buf, p, colon, TRANSFER_ENCODING)) {
+                    throw new ParseException(501, "Not Implemented");
+                }
+            }
+            p = eol + 2;
+        }
+    }
+
+    private HttpRequest buildRequest(byte[] buf) {
+        int from = start;
+        byte[] head = Arrays.copyOfRange(buf, from, headEnd);
+        int[] headers = new int[headerCount * 4];
+        for (int i = 0; i < headers.length; i++) headers[i] = lines[4 + i] - from;
+        String method = method(buf, from, lines[0]);
+        String target = new String(buf, lines[1], lines[2] - lines[1], StandardCharsets.UTF_8);
+        boolean http11 = lines[3] - lines[2] == 9 && buf[lines[3] - 1] == '1' && buf[lines[3] - 3] == '1';
+        byte[] body = contentLength == 0 ? HttpRequest.NO_BODY : Arrays.copyOfRange(buf, headEnd, headEnd + contentLength);
+        return new HttpRequest(method, target, http11, head, headers, body);
+    }
+
+    private static String method(byte[] buf, int from, int to) {
+        for (int i = 0; i < METHODS.length; i++) {
+            byte[] m = METHOD_BYTES[i];
+            if (m.length == to - from && Arrays.equals(buf, from, to, m, 0, m.length)) return METHODS[i];
+        }
+        return new String(buf, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    private static int parseLength(byte[] buf, int from, int to) throws ParseException {
+        if (from == to) throw new ParseException(400, "Bad Request");
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte c = buf[i];
+            if (c < '0' || c > '9') throw new ParseException(400, "Bad Request");
+            value = value * 10 + (c - '0');
+            if (value > MAX_BODY_BYTES) throw new ParseException(413, "Payload Too Large");
+        }
+        return (int) value;
+    }
+
+    // Returns the offset just past the blank line ending the request head, or -1
+    private static int findHeadEnd(byte[] buf, int from, int limit) {
+        for (int i = from + 3; i < limit; i++) {
+            if (buf[i] == '\n' && buf[i - 1] == '\r' && buf[i - 2] == '\n' && buf[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) return i;
+        }
+        return -1;
+    }
+
+    static boolean equalsIgnoreCase(byte[] buf, int from, int to, byte[] lowerName) {
+        if (to - from != lowerName.length) return false;
+        for (int i = 0; i < lowerName.length; i++) {
+            byte c = buf[from + i];
+            if (c >= 'A' && c <= 'Z') c += 32;
+            if (c != lowerName[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,476 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking server for the desktop socket protocol ({@link DesktopProtocol}). A few
+ * event-loop threads, each owning a Selector, serve every client; loop 0 also accepts and
+ * hands channels out round-robin. A client's first bytes choose its mode: the binary hello,
+ * or anything else for the newline-delimited text protocol, which is also assumed for a
+ * client that stays silent for {@code NEGOTIATION_MILLIS}; output to a client is held until
+ * its mode is known. Text is UTF-8 on the wire whatever the platform charset, and an idle
+ * client holds no buffers: reads go through a per-loop scratch buffer and only an incomplete
+ * line or frame is kept per connection.
+ *
+ * <p>The commands decoded from one read reach the listener together, and a broadcast is
+ * encoded once per mode, as a single buffer however many messages it carries (a BATCH frame
+ * in binary mode). Each connection queues a view of it for its loop to write, so callers (the
+ * EDT included) never block on a socket. A client whose unsent output exceeds the pending
+ * limit is disconnected.
+ */
+final class LineServer implements ChatEngine.Transport {
+    private static final int SCRATCH_BYTES = 64 * 1024;
+    private static final long NEGOTIATION_MILLIS = 300;
+
+    private static final int UNDECIDED = 0;
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+
+    /** Callbacks run on the client's event loop, so they should not block for long. */
+    interface Listener {
+        void onOpen(Client client);
+
+        /** The messages a client sent, in order, as many as arrived together. */
+        void onMessages(Client client, List<String> texts);
+
+        void onUser(Client client, String name);
+
+        void onClose(Client client);
+    }
+
+    /** One broadcast, encoded for each mode the first time a client of that mode needs it. */
+    private static final class Outbound {
+        private final String sender;
+        private final List<String> texts;
+        private ByteBuffer text;
+        private ByteBuffer binary;
+
+        Outbound(String sender, List<String> texts) {
+            this.sender = sender;
+            this.texts = texts;
+        }
+
+        synchronized ByteBuffer encoded(int mode) {
+            if (mode == BINARY) {
+                if (binary == null) {
+                    binary = texts == null ? DesktopProtocol.encodeDisconnect() : DesktopProtocol.encodeMessages(sender, texts);
+                }
+                return binary.duplicate();
+            }
+            if (text == null) {
+                text = texts == null ? DesktopProtocol.encodeTextDisconnect() : DesktopProtocol.encodeTextMessages(sender, texts);
+            }
+            return text.duplicate();
+        }
+    }
+
+    private final int port;
+    private final Listener listener;
+    private final int maxLineBytes;
+    private final long maxPendingBytes;
+    private final EventLoop[] loops;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    LineServer(int port, int threads, int maxLineBytes, long maxPendingBytes, Listener listener) {
+        this.port = port;
+        this.listener = listener;
+        this.maxLineBytes = Math.max(256, maxLineBytes);
+        this.maxPendingBytes = Math.max(this.maxLineBytes, maxPendingBytes);
+        this.loops = new EventLoop[Math.max(1, threads)];
+    }
+
+    static LineServer fromConfig(int port, Listener listener) {
+        return new LineServer(port,
+                ChatConfig.getInt("desktop.link.threads", 2),
+                ChatConfig.getInt("desktop.link.max.line.bytes", 65536),
+                ChatConfig.getLong("desktop.link.max.pending.bytes", 1024 * 1024),
+                listener);
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.execute(loop::shutdown);
+        }
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    /** Queues {@code texts} from {@code sender} for every connected client. */
+    void broadcastMessages(String sender, List<String> texts) {
+        if (texts.isEmpty()) return;
+        broadcast(new Outbound(sender, List.copyOf(texts)));
+    }
+
+    /** Tells every connected client that another one has left. */
+    void broadcastDisconnect() {
+        broadcast(new Outbound(null, null));
+    }
+
+    private void broadcast(Outbound outbound) {
+        for (Client client : clients) {
+            client.send(outbound);
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("Line server accept error: " + e.getMessage());
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_BYTES);
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Client> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connected clients that have not sent anything yet, oldest first
+        private final ArrayDeque<Client> undecided = new ArrayDeque<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "line-server-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(Client client) {
+            pendingFlushes.add(client);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select(undecided.isEmpty() ? 0 : NEGOTIATION_MILLIS);
+                } catch (IOException e) {
+                    System.err.println("Line server selector error: " + e.getMessage());
+                    return;
+                }
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null) {
+                    try {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        Client client = new Client(this, channel, key);
+                        key.attach(client);
+                        clients.add(client);
+                        undecided.add(client);
+                        listener.onOpen(client);
+                    } catch (ClosedChannelException ignored) {
+                    }
+                }
+                Client pending;
+                while ((pending = pendingFlushes.poll()) != null) {
+                    pending.flushNow();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (!selector.isOpen()) return;
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isReadable()) client.onReadable(scratch);
+                        if (key.isValid() && key.isWritable()) client.flushNow();
+                    } catch (IOException | RuntimeException e) {
+                        client.closeNow();
+                    }
+                }
+                defaultSilentClients();
+            }
+        }
+
+        // Clients that said nothing within the negotiation window speak text
+        private void defaultSilentClients() {
+            long cutoff = System.currentTimeMillis() - NEGOTIATION_MILLIS;
+            Client client;
+            while ((client = undecided.peek()) != null && (client.mode != UNDECIDED || client.connectedAt <= cutoff)) {
+                undecided.poll();
+                if (client.mode == UNDECIDED && !client.closed) client.decided(TEXT);
+            }
+        }
+
+        void shutdown() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Client) ((Client) key.attachment()).closeNow();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** One connected client. */
+    final class Client implements DesktopProtocol.Handler {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final long connectedAt = System.currentTimeMillis();
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        // Broadcasts that arrived before the mode was known; guarded by writeQueue
+        private final List<Outbound> held = new ArrayList<>();
+        // Bytes of a line or frame still incomplete; null whenever the last read ended on a boundary
+        private ByteBuffer partial;
+        // Messages decoded from the current read, handed over together
+        private final List<String> received = new ArrayList<>();
+        private long pendingBytes;
+        private volatile int mode = UNDECIDED;
+        private volatile boolean closing;
+        private volatile boolean closed;
+
+        Client(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /** Sends what is already queued, then closes. */
+        void close() {
+            closing = true;
+            requestFlush();
+        }
+
+        private void send(Outbound outbound) {
+            boolean overflow;
+            boolean idle;
+            synchronized (writeQueue) {
+                if (closed || closing) return;
+                if (mode == UNDECIDED) {
+                    // Counted at its text size; the count is redone once the mode is known
+                    ByteBuffer estimate = outbound.encoded(TEXT);
+                    overflow = pendingBytes + estimate.remaining() > maxPendingBytes;
+                    if (!overflow) {
+                        pendingBytes += estimate.remaining();
+                        held.add(outbound);
+                    }
+                    idle = false;
+                } else {
+                    ByteBuffer encoded = outbound.encoded(mode);
+                    overflow = pendingBytes + encoded.remaining() > maxPendingBytes;
+                    // Anything already queued has a flush scheduled or OP_WRITE armed, which will take this too
+                    idle = writeQueue.isEmpty();
+                    if (!overflow) {
+                        pendingBytes += encoded.remaining();
+                        writeQueue.add(encoded);
+                    }
+                }
+            }
+            if (overflow) {
+                // A client that cannot keep up is dropped rather than buffered without bound
+                loop.execute(this::closeNow);
+            } else if (idle) {
+                requestFlush();
+            }
+        }
+
+        // Runs on the loop; queues the binary hello and everything held back, in order
+        private void decided(int newMode) {
+            synchronized (writeQueue) {
+                mode = newMode;
+                pendingBytes = 0;
+                if (newMode == BINARY) writeQueue.add(DesktopProtocol.hello(DesktopProtocol.VERSION));
+                for (Outbound outbound : held) writeQueue.add(outbound.encoded(newMode));
+                held.clear();
+                for (ByteBuffer buffer : writeQueue) pendingBytes += buffer.remaining();
+            }
+            flushNow();
+        }
+
+        private void requestFlush() {
+            if (loop.inLoop()) flushNow();
+            else loop.scheduleFlush(this);
+        }
+
+        void onReadable(ByteBuffer scratch) throws IOException {
+            int n = channel.read(scratch.clear());
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            scratch.flip();
+            ByteBuffer in = scratch;
+            if (partial != null) {
+                if (partial.remaining() < scratch.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.capacity() * 2, partial.position() + scratch.remaining()));
+                    partial = grown.put(partial.flip());
+                }
+                in = partial.put(scratch).flip();
+            }
+            decode(in);
+            if (closed) return;
+            if (!in.hasRemaining()) {
+                partial = null;
+            } else if (mode == TEXT && in.remaining() > maxLineBytes) {
+                closeNow();
+            } else if (in == partial) {
+                partial.compact();
+            } else {
+                partial = ByteBuffer.allocate(Math.max(256, in.remaining() * 2)).put(in);
+            }
+        }
+
+        private void decode(ByteBuffer in) {
+            if (!in.hasRemaining()) return;
+            if (mode == UNDECIDED) {
+                if ((in.get(in.position()) & 0xFF) == DesktopProtocol.MAGIC) {
+                    if (in.remaining() < 2) return;
+                    in.position(in.position() + 1);
+                    if (in.get() < 1) {
+                        closeNow();
+                        return;
+                    }
+                    decided(BINARY);
+                } else {
+                    decided(TEXT);
+                }
+            }
+            try {
+                if (mode == BINARY) {
+                    DesktopProtocol.decode(in, maxLineBytes, this);
+                } else {
+                    DesktopProtocol.decodeText(in, this);
+                }
+            } catch (IllegalArgumentException e) {
+                closeNow();
+                return;
+            }
+            deliverReceived();
+        }
+
+        private void deliverReceived() {
+            if (received.isEmpty() || closed) return;
+            List<String> texts = new ArrayList<>(received);
+            received.clear();
+            listener.onMessages(this, texts);
+        }
+
+        @Override
+        public void message(String text) {
+            received.add(text);
+        }
+
+        @Override
+        public void user(String name) {
+            deliverReceived();
+            if (!closed) listener.onUser(this, name);
+        }
+
+        @Override
+        public void disconnect() {
+            deliverReceived();
+            close();
+        }
+
+        void flushNow() {
+            if (closed) return;
+            try {
+                synchronized (writeQueue) {
+                    while (!writeQueue.isEmpty()) {
+                        ByteBuffer[] buffers = writeQueue.toArray(new ByteBuffer[0]);
+                        pendingBytes -= channel.write(buffers);
+                        while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                            writeQueue.poll();
+                        }
+                        if (!writeQueue.isEmpty()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (closing) closeNow();
+            } catch (IOException | RuntimeException e) {
+                closeNow();
+            }
+        }
+
+        void closeNow() {
+            synchronized (writeQueue) {
+                if (closed) return;
+                closed = true;
+                writeQueue.clear();
+                held.clear();
+                pendingBytes = 0;
+            }
+            partial = null;
+            received.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (clients.remove(this)) listener.onClose(this);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring of the most recent messages. Appends are lock-free: a message takes
+ * the next id from an atomic counter and is published into slot {@code id & mask}, so the
+ * store never grows and older entries are simply overwritten. Readers validate the id of
+ * each slot they visit, which makes overwritten or not-yet-published entries invisible.
+ * Each room has its own history, and so its own id sequence.
+ */
+final class MessageHistory {
+    private final String room;
+    private final AtomicReferenceArray<ChatMessage> slots;
+    private final int mask;
+    private final AtomicLong lastId = new AtomicLong();
+
+    MessageHistory(int capacity) {
+        this(ChatRooms.DEFAULT, capacity);
+    }
+
+    MessageHistory(String room, int capacity) {
+        this(room, capacity, 0);
+    }
+
+    /** An empty history whose first message gets id {@code lastId + 1}. */
+    MessageHistory(String room, int capacity, long lastId) {
+        this.room = room;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.lastId.set(lastId);
+    }
+
+    static MessageHistory fromConfig() {
+        return new MessageHistory(ChatConfig.getInt("history.capacity", 1024));
+    }
+
+    ChatMessage append(String sender, String name, String avatar, String text) {
+        return append(sender, name, avatar, text, System.currentTimeMillis());
+    }
+
+    ChatMessage append(String sender, String name, String avatar, String text, long timestamp) {
+        long id = lastId.incrementAndGet();
+        ChatMessage message = new ChatMessage(id, sender, name, avatar, text, timestamp, room);
+        slots.set((int) (id & mask), message);
+        return message;
+    }
+
+    /** Re-inserts a message recovered from the journal, keeping its original id. */
+    void restore(ChatMessage message) {
+        int slot = (int) (message.id() & mask);
+        ChatMessage existing = slots.get(slot);
+        if (existing == null || existing.id() < message.id()) {
+            slots.set(slot, message);
+        }
+        lastId.accumulateAndGet(message.id(), Math::max);
+    }
+
+    String room() {
+        return room;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    long latestId() {
+        return lastId.get();
+    }
+
+    long oldestId() {
+        return Math.max(1, lastId.get() - mask);
+    }
+
+    ChatMessage get(long id) {
+        if (id <= 0) return null;
+        ChatMessage message = slots.get((int) (id & mask));
+        return message != null && message.id() == id ? message : null;
+    }
+
+    /** Messages with an id greater than {@code afterId}, oldest first, at most {@code limit}. */
+    List<ChatMessage> after(long afterId, int limit) {
+        long latest = lastId.get();
+        long from = Math.max(afterId + 1, Math.max(oldestId(), latest - limit + 1));
+        return collect(from, latest);
+    }
+
+    /** The newest {@code count} messages, oldest first. */
+    List<ChatMessage> latest(int count) {
+        long latest = lastId.get();
+        return collect(Math.max(oldestId(), latest - count + 1), latest);
+    }
+
+    /** Messages with {@code fromMillis <= timestamp < toMillis}, oldest first, at most {@code limit}. */
+    List<ChatMessage> between(long fromMillis, long toMillis, int limit) {
+        long latest = lastId.get();
+        long lo = oldestId();
+        long hi = latest + 1;
+        // Ids grow with time, so binary search for the first message at or after fromMillis
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            ChatMessage m = get(mid);
+            if (m == null || m.timestamp() < fromMillis) lo = mid + 1;
+            else hi = mid;
+        }
+        List<ChatMessage> result = new ArrayList<>();
+        for (long id = lo; id <= latest && result.size() < limit; id++) {
+            ChatMessage m = get(id);
+            if (m == null) continue;
+            if (m.timestamp() >= toMillis) break;
+            result.add(m);
+        }
+        return result;
+    }
+
+    private List<ChatMessage> collect(long fromId, long toId) {
+        List<ChatMessage> result = new ArrayList<>((int) Math.max(0, Math.min(toId - fromId + 1, capacity())));
+        for (long id = fromId; id <= toId; id++) {
+            ChatMessage m = get(id);
+            if (m != null) result.add(m);
+        }
+        return result;
+    }
+}
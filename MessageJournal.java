@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk log of chat messages. Records live in fixed-size, memory-mapped
+ * segment files ({@code segment-NNNNNN.log}); each record is
+ * {@code [int length][int crc32][payload]} and a zero length marks the end of a segment.
+ * The payload ends with the message's room; records written before rooms existed end
+ * without it and are read back into the default room.
+ * Appends only copy into the mapping; a flusher thread forces dirty segments to disk once
+ * per durability window (group commit), or every append when the window is 0.
+ *
+ * <p>On startup every retained segment is scanned in order and handed to the caller to
+ * rebuild its in-memory history. A torn or corrupt record ends the scan of that segment,
+ * so a crash mid-write loses at most the unsynced tail and never blocks startup.
+ */
+final class MessageJournal implements AutoCloseable {
+    private static final int HEADER_BYTES = 8;
+    private static final int ZERO_RUN = 64;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int retainSegments;
+    private final long flushMillis;
+    private final CRC32 crc = new CRC32();
+    private final Object syncMonitor = new Object();
+    // Futures from whenDurable in sequence order; guarded by syncMonitor
+    private final ArrayDeque<DurableWaiter> durableWaiters = new ArrayDeque<>();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private long appendedSeq;
+    // Guarded by syncMonitor
+    private long syncedSeq;
+    private volatile boolean closed;
+
+    private record DurableWaiter(long seq, CompletableFuture<Void> future) {}
+
+    private MessageJournal(Path dir, int segmentBytes, int retainSegments, long flushMillis) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = Math.max(1, retainSegments);
+        this.flushMillis = flushMillis;
+    }
+
+    /**
+     * Opens (or creates) the journal named {@code name} under the {@code journal.dir}
+     * directory and replays its records into {@code recovered}. Returns null when the
+     * journal is disabled or cannot be opened, in which case the caller runs in memory only.
+     */
+    static MessageJournal open(String name, Consumer<ChatMessage> recovered) {
+        if (!ChatConfig.getBoolean("journal.enabled", true)) return null;
+        Path dir = Paths.get(ChatConfig.get("journal.dir", "journal"), name);
+        MessageJournal journal = new MessageJournal(dir,
+                ChatConfig.getInt("journal.segment.bytes", 16 * 1024 * 1024),
+                ChatConfig.getInt("journal.retain.segments", 8),
+                ChatConfig.getLong("journal.flush.millis", 50));
+        try {
+            journal.recover(recovered);
+        } catch (IOException e) {
+            System.err.println("Journal disabled, could not open " + dir + ": " + e.getMessage());
+            return null;
+        }
+        journal.startFlusher();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+            }
+        }, "journal-shutdown"));
+        return journal;
+    }
+
+    private void recover(Consumer<ChatMessage> recovered) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            openSegment(1);
+            return;
+        }
+        long count = 0;
+        for (Path path : segments.subList(0, segments.size() - 1)) {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                count += scan(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), recovered);
+            }
+        }
+        Path tail = segments.get(segments.size() - 1);
+        segmentIndex = indexOf(tail);
+        channel = FileChannel.open(tail, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+        count += scan(segment, recovered);
+        // Wipe whatever a torn write left behind so it can never be mistaken for a record
+        int zeros = 0;
+        for (int p = segment.position(); p < segment.capacity() && zeros < ZERO_RUN; p++) {
+            if (segment.get(p) == 0) {
+                zeros++;
+            } else {
+                zeros = 0;
+                segment.put(p, (byte) 0);
+            }
+        }
+        segment.force();
+        if (count > 0) {
+            System.out.println("Journal: recovered " + count + " messages from " + segments.size() + " segment(s) in " + dir);
+        }
+    }
+
+    // Reads records until the end marker or the first torn/corrupt record, leaving the
+    // buffer positioned at the end of the valid data; returns how many were read
+    private static long scan(MappedByteBuffer buf, Consumer<ChatMessage> recovered) {
+        long count = 0;
+        CRC32 check = new CRC32();
+        while (buf.remaining() >= HEADER_BYTES) {
+            int start = buf.position();
+            int length = buf.getInt();
+            int expected = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) {
+                buf.position(start);
+                break;
+            }
+            byte[] payload = new byte[length];
+            buf.get(payload);
+            check.reset();
+            check.update(payload);
+            if ((int) check.getValue() != expected) {
+                buf.position(start);
+                break;
+            }
+            recovered.accept(decode(payload));
+            count++;
+        }
+        return count;
+    }
+
+    private void openSegment(int index) throws IOException {
+        segmentIndex = index;
+        channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+
+    /** Copies the message into the current segment and returns its append sequence. */
+    synchronized long append(ChatMessage message) throws IOException {
+        if (closed) throw new IOException("Journal closed");
+        byte[] payload = encode(message);
+        int size = HEADER_BYTES + payload.length;
+        if (size + HEADER_BYTES > segmentBytes) throw new IOException("Message too large for journal segment");
+        if (segment.remaining() < size + HEADER_BYTES) {
+            roll();
+        }
+        crc.reset();
+        crc.update(payload);
+        int start = segment.position();
+        segment.position(start + HEADER_BYTES);
+        segment.put(payload);
+        segment.putInt(start + 4, (int) crc.getValue());
+        // Length goes in last so a partially copied record always reads as the end marker
+        segment.putInt(start, payload.length);
+        long seq = ++appendedSeq;
+        if (flushMillis <= 0) {
+            segment.force();
+            markSynced(seq);
+        }
+        return seq;
+    }
+
+    /**
+     * Completes once the record with the given append sequence is on disk, or fails if the
+     * sync that should have covered it fails. Completed by the flusher (group commit), so
+     * nothing ever blocks waiting for it.
+     */
+    CompletableFuture<Void> whenDurable(long seq) {
+        synchronized (syncMonitor) {
+            if (syncedSeq >= seq) return CompletableFuture.completedFuture(null);
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            durableWaiters.add(new DurableWaiter(seq, future));
+            return future;
+        }
+    }
+
+    private void roll() throws IOException {
+        segment.force();
+        channel.close();
+        openSegment(segmentIndex + 1);
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size() - retainSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private void startFlusher() {
+        if (flushMillis <= 0) return;
+        Thread flusher = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Thread.sleep(flushMillis);
+                    sync();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Journal flush error: " + e.getMessage());
+                }
+            }
+        }, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Forces everything appended so far to disk. Only the sequence and the segment are read
+     * under the append lock, so appends carry on during the flush. A roll in the meantime
+     * has already forced the old segment, and forcing it again is harmless.
+     */
+    void sync() throws IOException {
+        long seq;
+        MappedByteBuffer target;
+        synchronized (this) {
+            if (closed) return;
+            seq = appendedSeq;
+            target = segment;
+        }
+        synchronized (syncMonitor) {
+            if (seq <= syncedSeq) return;
+        }
+        try {
+            target.force();
+        } catch (RuntimeException e) {
+            failDurableWaiters(new IOException("Journal sync failed", e));
+            throw e;
+        }
+        markSynced(seq);
+    }
+
+    private void markSynced(long seq) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        synchronized (syncMonitor) {
+            if (seq > syncedSeq) syncedSeq = seq;
+            while (!durableWaiters.isEmpty() && durableWaiters.peek().seq() <= syncedSeq) {
+                durable.add(durableWaiters.poll().future());
+            }
+        }
+        for (CompletableFuture<Void> future : durable) future.complete(null);
+    }
+
+    private void failDurableWaiters(IOException error) {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        synchronized (syncMonitor) {
+            while (!durableWaiters.isEmpty()) failed.add(durableWaiters.poll().future());
+        }
+        for (CompletableFuture<Void> future : failed) future.completeExceptionally(error);
+    }
+
+    @Override
+    public void close() throws IOException {
+        long seq;
+        try {
+            synchronized (this) {
+                if (closed) return;
+                closed = true;
+                seq = appendedSeq;
+                segment.force();
+                channel.close();
+            }
+        } catch (RuntimeException e) {
+            failDurableWaiters(new IOException("Journal sync failed", e));
+            throw e;
+        }
+        markSynced(seq);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(p -> p.getFileName().toString().matches("segment-\\d+\\.log")).sorted().forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private Path segmentPath(int index) {
+        return dir.resolve(String.format("segment-%06d.log", index));
+    }
+
+    private static int indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("segment-".length(), name.length() - ".log".length()));
+    }
+
+    private static byte[] encode(ChatMessage m) {
+        byte[][] fields = {bytes(m.sender()), bytes(m.name()), bytes(m.avatar()), bytes(m.text()), bytes(m.room())};
+        int size = 16;
+        for (byte[] f : fields) size += 4 + (f == null ? 0 : f.length);
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putLong(m.id()).putLong(m.timestamp());
+        for (byte[] f : fields) {
+            buf.putInt(f == null ? -1 : f.length);
+            if (f != null) buf.put(f);
+        }
+        return buf.array();
+    }
+
+    private static ChatMessage decode(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        long id = buf.getLong();
+        long timestamp = buf.getLong();
+        String sender = string(buf);
+        String name = string(buf);
+        String avatar = string(buf);
+        String text = string(buf);
+        String room = buf.hasRemaining() ? string(buf) : null;
+        return new ChatMessage(id, sender, name, avatar, text, timestamp, room != null ? room : ChatRooms.DEFAULT);
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) return null;
+        String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+}
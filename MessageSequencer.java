@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Single-writer ingest stage for posted messages. Request threads enqueue onto a bounded
+ * multi-producer queue; one sequencer thread drains up to {@code maxBatch} messages, or
+ * whatever arrives within {@code lingerMicros} of the first one, assigns their ids, appends
+ * them to their room's history and the journal, and hands the whole batch to the publisher
+ * so it can be logged and broadcast as a single write per subscriber.
+ *
+ * <p>In durable mode a message's future completes only once the journal has synced it; the
+ * journal's group commit completes it, so the sequencer never waits on the disk. A failed
+ * journal write or sync, or no sync within the SLA, fails the future.
+ */
+final class MessageSequencer {
+    private final BlockingQueue<Pending> queue;
+    private final MessageJournal journal;
+    private final Consumer<List<ChatMessage>> publisher;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final long slaMillis;
+    private final boolean durable;
+
+    private static final class Pending {
+        final ChatRooms.Room room;
+        final String sender;
+        final String name;
+        final String avatar;
+        final String text;
+        final CompletableFuture<ChatMessage> done = new CompletableFuture<>();
+
+        Pending(ChatRooms.Room room, String sender, String name, String avatar, String text) {
+            this.room = room;
+            this.sender = sender;
+            this.name = name;
+            this.avatar = avatar;
+            this.text = text;
+        }
+    }
+
+    MessageSequencer(MessageJournal journal, Consumer<List<ChatMessage>> publisher,
+                     int queueCapacity, int maxBatch, long lingerMicros, long slaMillis, boolean durable) {
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+        this.journal = journal;
+        this.publisher = publisher;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        this.slaMillis = slaMillis;
+        this.durable = durable;
+        Thread thread = new Thread(this::run, "message-sequencer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static MessageSequencer fromConfig(MessageJournal journal, Consumer<List<ChatMessage>> publisher) {
+        return new MessageSequencer(journal, publisher,
+                ChatConfig.getInt("send.queue", 10000),
+                ChatConfig.getInt("send.batch.max", 64),
+                ChatConfig.getLong("send.batch.linger.micros", 200),
+                ChatConfig.getLong("send.sla.millis", 250),
+                ChatConfig.getBoolean("send.durable", false));
+    }
+
+    CompletableFuture<ChatMessage> submit(ChatRooms.Room room, String sender, String name, String avatar, String text) {
+        Pending pending = new Pending(room, sender, name, avatar, text);
+        if (!queue.offer(pending)) {
+            pending.done.completeExceptionally(new IOException("Send queue full"));
+        }
+        return pending.done;
+    }
+
+    /**
+     * Submits a message and waits for it to be sequenced (and synced, in durable mode) for at
+     * most the configured SLA. Returns false if the message was rejected or, in durable mode,
+     * not confirmed on disk in time; otherwise a message still in flight when the SLA expires
+     * is accepted and will be published.
+     */
+    boolean publish(ChatRooms.Room room, String sender, String name, String avatar, String text) {
+        CompletableFuture<ChatMessage> done = submit(room, sender, name, avatar, text);
+        try {
+            done.get(slaMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return !durable;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        List<ChatMessage> messages = new ArrayList<>(maxBatch);
+        List<IOException> journalErrors = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) continue;
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long lastSeq = 0;
+            for (Pending p : batch) {
+                ChatMessage message = p.room.append(p.sender, p.name, p.avatar, p.text);
+                messages.add(message);
+                IOException error = null;
+                if (journal != null) {
+                    try {
+                        lastSeq = journal.append(message);
+                    } catch (IOException e) {
+                        System.err.println("Journal write failed: " + e.getMessage());
+                        error = e;
+                    }
+                }
+                journalErrors.add(error);
+            }
+            try {
+                publisher.accept(messages);
+            } catch (RuntimeException e) {
+                System.err.println("Publish failed: " + e.getMessage());
+            }
+            // One sync covers the whole batch, since the journal syncs in append order
+            CompletableFuture<Void> synced = durable && journal != null && lastSeq > 0
+                    ? journal.whenDurable(lastSeq).orTimeout(slaMillis, TimeUnit.MILLISECONDS)
+                    : null;
+            for (int i = 0; i < batch.size(); i++) {
+                CompletableFuture<ChatMessage> done = batch.get(i).done;
+                ChatMessage message = messages.get(i);
+                IOException error = journalErrors.get(i);
+                if (durable && error != null) {
+                    done.completeExceptionally(error);
+                } else if (synced != null) {
+                    synced.whenComplete((ok, failure) -> {
+                        if (failure == null) done.complete(message);
+                        else done.completeExceptionally(failure);
+                    });
+                } else {
+                    done.complete(message);
+                }
+            }
+            batch.clear();
+            messages.clear();
+            journalErrors.clear();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The desktop's message list. Messages live in a fixed-capacity ring, so memory and layout
+ * cost stay flat however long the app runs, and a {@link JList} only renders the rows in
+ * view, reusing one cell component. {@link #add} may be called from any thread: arrivals are
+ * queued and applied in a single {@link UiBus} frame, however many came in since the last one.
+ */
+final class MessageView {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /** A message ready to render; the timestamp is formatted once, off the EDT. */
+    record Line(ChatMessage message, Color color, String time, boolean alert) {}
+
+    private final Model model;
+    private final JList<Line> list;
+    private final UiBus bus;
+    private final Queue<Line> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    MessageView(int capacity, Color timeColor, UiBus bus) {
+        this.model = new Model(Math.max(1, capacity));
+        this.list = new JList<>(model) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true;
+            }
+        };
+        this.bus = bus;
+        list.setCellRenderer(new Renderer(timeColor));
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setFocusable(false);
+        // Rows wrap to the list width, so their cached heights go stale when it changes
+        list.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                list.setFixedCellHeight(1);
+                list.setFixedCellHeight(-1);
+            }
+        });
+    }
+
+    static MessageView fromConfig(Color timeColor, UiBus bus) {
+        return new MessageView(ChatConfig.getInt("desktop.messages.max", 1000), timeColor, bus);
+    }
+
+    JList<Line> list() {
+        return list;
+    }
+
+    void add(ChatMessage message, Color color, boolean notify) {
+        pending.add(new Line(message, color, TIME.format(Instant.ofEpochMilli(message.timestamp())), notify));
+        if (scheduled.compareAndSet(false, true)) {
+            bus.post(this::flush);
+        }
+    }
+
+    private void flush() {
+        // Cleared first, so an add racing with the drain schedules another pass
+        scheduled.set(false);
+        List<Line> batch = new ArrayList<>();
+        boolean notify = false;
+        for (Line line; (line = pending.poll()) != null; ) {
+            batch.add(line);
+            notify |= line.alert();
+        }
+        if (batch.isEmpty()) return;
+        model.addAll(batch);
+        list.ensureIndexIsVisible(model.getSize() - 1);
+        if (notify) bus.alert();
+    }
+
+    /** Ring buffer of the newest lines; only touched on the EDT. */
+    private static final class Model extends AbstractListModel<Line> {
+        private static final long serialVersionUID = 1L;
+
+        private final Line[] lines;
+        private int head;
+        private int size;
+
+        Model(int capacity) {
+            this.lines = new Line[capacity];
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public Line getElementAt(int index) {
+            return lines[(head + index) % lines.length];
+        }
+
+        void addAll(List<Line> batch) {
+            int skip = Math.max(0, batch.size() - lines.length);
+            int drop = Math.max(0, size + batch.size() - skip - lines.length);
+            if (drop > 0) {
+                for (int i = 0; i < drop; i++) {
+                    lines[head] = null;
+                    head = (head + 1) % lines.length;
+                }
+                size -= drop;
+                fireIntervalRemoved(this, 0, drop - 1);
+            }
+            int first = size;
+            for (int i = skip; i < batch.size(); i++) {
+                lines[(head + size) % lines.length] = batch.get(i);
+                size++;
+            }
+            if (size > first) fireIntervalAdded(this, first, size - 1);
+        }
+    }
+
+    /** One reusable cell: a header with the sender and time, and the wrapped message body. */
+    private static final class Renderer extends JPanel implements ListCellRenderer<Line> {
+        private static final long serialVersionUID = 1L;
+
+        private final JLabel sender = new JLabel();
+        private final JLabel time = new JLabel();
+        private final JTextArea body = new JTextArea();
+        private Font baseFont;
+
+        Renderer(Color timeColor) {
+            super(new BorderLayout(0, 2));
+            setBorder(new EmptyBorder(4, 2, 4, 2));
+            JPanel header = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+            header.setOpaque(false);
+            time.setForeground(timeColor);
+            header.add(sender);
+            header.add(Box.createHorizontalStrut(8));
+            header.add(time);
+            body.setLineWrap(true);
+            body.setWrapStyleWord(true);
+            body.setOpaque(false);
+            body.setBorder(null);
+            add(header, BorderLayout.NORTH);
+            add(body, BorderLayout.CENTER);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends Line> list, Line line, int index,
+                                                      boolean selected, boolean focused) {
+            if (list.getFont() != baseFont) {
+                baseFont = list.getFont();
+                sender.setFont(baseFont.deriveFont(Font.BOLD, 12f));
+                time.setFont(baseFont.deriveFont(Font.ITALIC, 10f));
+                body.setFont(baseFont);
+            }
+            setBackground(selected ? list.getSelectionBackground() : list.getBackground());
+            body.setForeground(list.getForeground());
+            sender.setForeground(line.color());
+            sender.setText(line.message().displayName());
+            time.setText(line.time());
+            body.setText(line.message().text());
+            // Lay the text out at the list's width so the row height accounts for wrapping
+            Insets insets = getInsets();
+            int width = Math.max(list.getWidth() - insets.left - insets.right, 100);
+            body.setSize(width, Short.MAX_VALUE);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking HTTP engine: N event-loop threads, each owning a Selector. Loop 0 also
+ * accepts and hands new channels out round-robin. Requests are parsed on their loop by
+ * {@link HttpRequestParser} and handed to the handler executor running the same routing
+ * code the legacy engine uses; responses are queued and drained with gathering writes (file
+ * regions with transferTo), so other threads (SSE broadcasts) never block on a slow socket.
+ *
+ * <p>Connections are persistent: every complete request buffered so far (pipelined ones
+ * included) goes to the handler in one dispatch, bytes that arrive meanwhile keep
+ * accumulating, and once the handler reports it is done the loop dispatches whatever is
+ * complete next. Connections idle between requests are closed after the idle timeout.
+ */
+final class NioHttpEngine {
+    private static final long IDLE_CHECK_MILLIS = 1000;
+    private static final long MAX_PENDING_WRITE_BYTES = 4L * 1024 * 1024;
+
+    private final int port;
+    private final Consumer<HttpConnection> handler;
+    private final Executor executor;
+    private final long idleTimeoutMillis;
+    private final EventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    NioHttpEngine(int port, int threads, Consumer<HttpConnection> handler, Executor executor, long idleTimeoutMillis) {
+        this.port = port;
+        this.handler = handler;
+        this.executor = executor;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.loops = new EventLoop[Math.max(1, threads)];
+    }
+
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("NIO engine running on port " + port + " with " + loops.length + " event loops");
+    }
+
+    /** Stops accepting and closes every connection. */
+    void stop() {
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) loop.execute(loop::shutdown);
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.register(channel);
+            }
+        } catch (IOException e) {
+            System.err.println("NIO accept error: " + e.getMessage());
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "http-nio-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(Connection connection) {
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select(idleTimeoutMillis > 0 ? IDLE_CHECK_MILLIS : 0);
+                } catch (IOException e) {
+                    System.err.println("NIO selector error: " + e.getMessage());
+                    return;
+                }
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null) {
+                    try {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(this, channel, key));
+                    } catch (ClosedChannelException ignored) {
+                    }
+                }
+                Connection pending;
+                while ((pending = pendingFlushes.poll()) != null) {
+                    pending.flushNow();
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                if (!selector.isOpen()) return;
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.flushNow();
+                    } catch (IOException | RuntimeException e) {
+                        connection.closeNow();
+                    }
+                }
+                closeIdleConnections();
+            }
+        }
+
+        private void closeIdleConnections() {
+            if (idleTimeoutMillis <= 0) return;
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < IDLE_CHECK_MILLIS) return;
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection && ((Connection) key.attachment()).isIdleSince(now - idleTimeoutMillis)) {
+                    ((Connection) key.attachment()).closeNow();
+                }
+            }
+        }
+
+        void shutdown() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).closeNow();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final class Connection implements HttpConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        // ByteBuffers and FileRegions, sent in order
+        private final ArrayDeque<Object> writeQueue = new ArrayDeque<>();
+        private final OutputStream output = new ChannelOutputStream();
+        private final HttpRequestParser parser = new HttpRequestParser(4096);
+        // Filled on the loop, drained by the handler; the executor and task queue hand it over
+        private final ArrayDeque<HttpRequest> ready = new ArrayDeque<>();
+        // Set on the loop once the connection has switched protocols; reads then go here instead of the parser
+        private HttpConnection.Protocol protocol;
+        private ByteBuffer protocolBuffer;
+        private long pendingBytes;
+        // Run once the write queue empties (see whenWritten); guarded by writeQueue
+        private Runnable onWritten;
+        private long lastActivity = System.currentTimeMillis();
+        private int requests;
+        private boolean dispatched;
+        private volatile boolean closing;
+        private volatile boolean closed;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        @Override
+        public HttpRequest readRequest() {
+            return ready.poll();
+        }
+
+        @Override
+        public OutputStream output() {
+            return output;
+        }
+
+        @Override
+        public void write(ByteBuffer... buffers) throws IOException {
+            // One lock for the whole call, so concurrent writers never interleave their buffers
+            synchronized (writeQueue) {
+                for (ByteBuffer b : buffers) {
+                    enqueue(b);
+                }
+            }
+            requestFlush();
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            FileRegion region = new FileRegion(file, position, count);
+            synchronized (writeQueue) {
+                if (closed || closing) {
+                    region.close();
+                    throw new IOException("Connection closed");
+                }
+                // Regions stay on disk, so they do not count against the pending byte limit
+                writeQueue.add(region);
+            }
+            requestFlush();
+        }
+
+        @Override
+        public boolean whenWritten(Runnable then) {
+            synchronized (writeQueue) {
+                if (closed || writeQueue.isEmpty()) return true;
+                onWritten = then;
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            requestFlush();
+        }
+
+        @Override
+        public int nextRequest() {
+            return ++requests;
+        }
+
+        @Override
+        public boolean resumeReading() {
+            loop.execute(() -> {
+                if (closed || closing) return;
+                dispatched = false;
+                lastActivity = System.currentTimeMillis();
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                try {
+                    dispatchBuffered();
+                } catch (IOException | RuntimeException e) {
+                    closeNow();
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void upgrade(HttpConnection.Protocol upgraded) {
+            loop.execute(() -> {
+                if (closed || closing) {
+                    upgraded.onClose();
+                    return;
+                }
+                // Stays dispatched for good, so the HTTP idle timeout no longer applies
+                protocol = upgraded;
+                protocolBuffer = ByteBuffer.allocate(8192);
+                try {
+                    ByteBuffer rest = parser.drain();
+                    if (rest.hasRemaining()) protocol.onData(rest);
+                } catch (IOException | RuntimeException e) {
+                    closeNow();
+                }
+            });
+        }
+
+        // Idle means waiting for a request with nothing left to send; streams held by a handler never are
+        boolean isIdleSince(long cutoff) {
+            if (dispatched || lastActivity >= cutoff) return false;
+            synchronized (writeQueue) {
+                return writeQueue.isEmpty();
+            }
+        }
+
+        void onReadable() throws IOException {
+            if (closing) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            if (protocol != null) {
+                int n = channel.read(protocolBuffer.clear());
+                if (n < 0) {
+                    closeNow();
+                } else if (n > 0) {
+                    protocol.onData(protocolBuffer.flip());
+                }
+                return;
+            }
+            if (dispatched && parser.isFull()) {
+                // The handler still owns the connection (a response in progress, or an event stream
+                // for good), so an error must not be written into it; stop reading until it resumes
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            ByteBuffer readBuffer;
+            try {
+                readBuffer = parser.buffer();
+            } catch (HttpRequestParser.ParseException e) {
+                reject(e);
+                return;
+            }
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            if (!dispatched) dispatchBuffered();
+        }
+
+        // Hands every complete request buffered so far to the handler; a partial one stays in the parser
+        private void dispatchBuffered() throws IOException {
+            try {
+                HttpRequest request;
+                while ((request = parser.parse()) != null) {
+                    ready.add(request);
+                }
+            } catch (HttpRequestParser.ParseException e) {
+                // Requests ahead of the bad one are answered first; it is rejected once the handler is done
+                if (ready.isEmpty()) {
+                    reject(e);
+                    return;
+                }
+            }
+            if (ready.isEmpty()) return;
+            dispatched = true;
+            try {
+                executor.execute(() -> handler.accept(this));
+            } catch (RejectedExecutionException e) {
+                try {
+                    HttpExecutors.writeServiceUnavailable(output);
+                } catch (IOException ignored) {
+                }
+                close();
+            }
+        }
+
+        private void reject(HttpRequestParser.ParseException e) throws IOException {
+            enqueue(e.response());
+            close();
+        }
+
+        private void enqueue(ByteBuffer buffer) throws IOException {
+            synchronized (writeQueue) {
+                if (closed || closing) throw new IOException("Connection closed");
+                if (pendingBytes + buffer.remaining() > MAX_PENDING_WRITE_BYTES) {
+                    throw new IOException("Write queue full");
+                }
+                pendingBytes += buffer.remaining();
+                writeQueue.add(buffer);
+            }
+        }
+
+        private void requestFlush() {
+            if (loop.inLoop()) flushNow();
+            else loop.scheduleFlush(this);
+        }
+
+        void flushNow() {
+            if (closed) return;
+            try {
+                Runnable written;
+                synchronized (writeQueue) {
+                    while (!writeQueue.isEmpty() && writeSome()) {
+                        lastActivity = System.currentTimeMillis();
+                    }
+                    if (!writeQueue.isEmpty()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    written = onWritten;
+                    onWritten = null;
+                }
+                if (written != null) written.run();
+                if (closing) closeNow();
+            } catch (IOException | RuntimeException e) {
+                closeNow();
+            }
+        }
+
+        // Writes the leading run of buffers, or the leading file region; false once the socket is full
+        private boolean writeSome() throws IOException {
+            Object head = writeQueue.peek();
+            if (head instanceof FileRegion) {
+                FileRegion region = (FileRegion) head;
+                if (!region.sendTo(channel)) return false;
+                region.close();
+                writeQueue.poll();
+                return true;
+            }
+            int run = 0;
+            for (Object o : writeQueue) {
+                if (o instanceof FileRegion) break;
+                run++;
+            }
+            ByteBuffer[] buffers = new ByteBuffer[run];
+            Iterator<Object> it = writeQueue.iterator();
+            for (int i = 0; i < run; i++) buffers[i] = (ByteBuffer) it.next();
+            pendingBytes -= channel.write(buffers);
+            while (!writeQueue.isEmpty() && writeQueue.peek() instanceof ByteBuffer && !((ByteBuffer) writeQueue.peek()).hasRemaining()) {
+                writeQueue.poll();
+            }
+            return !buffers[run - 1].hasRemaining();
+        }
+
+        void closeNow() {
+            Runnable written;
+            synchronized (writeQueue) {
+                if (closed) return;
+                closed = true;
+                for (Object o : writeQueue) {
+                    if (o instanceof FileRegion) ((FileRegion) o).close();
+                }
+                writeQueue.clear();
+                pendingBytes = 0;
+                written = onWritten;
+                onWritten = null;
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            if (written != null) written.run();
+            if (protocol != null) protocol.onClose();
+        }
+
+        private final class ChannelOutputStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                enqueue(ByteBuffer.wrap(new byte[] {(byte) b}));
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return;
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                enqueue(ByteBuffer.wrap(copy));
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (closed) throw new IOException("Connection closed");
+                requestFlush();
+            }
+
+            @Override
+            public void close() {
+                Connection.this.close();
+            }
+        }
+    }
+
+    private static final class FileRegion {
+        private final FileChannel file;
+        private long position;
+        private final long end;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.end = position + count;
+        }
+
+        // Returns true once the whole region has been handed to the socket
+        boolean sendTo(SocketChannel channel) throws IOException {
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                if (n <= 0) {
+                    if (position >= file.size()) throw new IOException("File shrank while sending");
+                    return false;
+                }
+                position += n;
+            }
+            return true;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
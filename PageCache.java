@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * Generated HTML pages rendered once into immutable byte buffers, together with a
+ * precompressed gzip and deflate variant and a strong ETag per variant. A hit is a single gathering
+ * write of a short header block and the shared body; a matching If-None-Match gets 304.
+ * Pages are re-rendered lazily after {@link #invalidateAll()}, which callers invoke when
+ * something a page is built from (settings, the avatar set) changes.
+ */
+final class PageCache {
+    private record Page(long version, String contentType, ByteBuffer identity, String etag,
+                        ByteBuffer gzip, String gzipEtag, ByteBuffer deflate, String deflateEtag) {}
+
+    private static final class Entry {
+        final String contentType;
+        final Supplier<String> renderer;
+        volatile Page page;
+
+        Entry(String contentType, Supplier<String> renderer) {
+            this.contentType = contentType;
+            this.renderer = renderer;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    void register(String path, String contentType, Supplier<String> renderer) {
+        entries.put(path, new Entry(contentType, renderer));
+    }
+
+    /** Renders every registered page now so the first request does not pay for it. */
+    void warm() {
+        for (Entry entry : entries.values()) page(entry);
+    }
+
+    void invalidateAll() {
+        version.incrementAndGet();
+    }
+
+    /** Writes the cached page for {@code path}; returns false if no page is registered there. */
+    boolean serve(HttpConnection connection, HttpRequest request, String path) throws IOException {
+        Entry entry = entries.get(path);
+        if (entry == null) return false;
+        Page page = page(entry);
+        String coding = null;
+        String etag = page.etag();
+        ByteBuffer body = page.identity();
+        if (page.gzip() != null && request.acceptsEncoding("gzip")) {
+            coding = "gzip";
+            etag = page.gzipEtag();
+            body = page.gzip();
+        } else if (page.deflate() != null && request.acceptsEncoding("deflate")) {
+            coding = "deflate";
+            etag = page.deflateEtag();
+            body = page.deflate();
+        }
+
+        boolean notModified = ETags.matches(request.header("if-none-match"), etag);
+        StringBuilder head = new StringBuilder(256);
+        if (notModified) {
+            head.append("HTTP/1.1 304 Not Modified\r\n");
+        } else {
+            head.append("HTTP/1.1 200 OK\r\n")
+                    .append("Content-Type: ").append(page.contentType()).append("\r\n")
+                    .append("Content-Length: ").append(body.remaining()).append("\r\n");
+            if (coding != null) head.append("Content-Encoding: ").append(coding).append("\r\n");
+        }
+        head.append("Date: ").append(HttpDates.now()).append("\r\n")
+                .append("ETag: ").append(etag).append("\r\n")
+                .append("Cache-Control: no-cache\r\n")
+                .append("Vary: Accept-Encoding\r\n")
+                .append(request.connectionHeader()).append("\r\n");
+        ByteBuffer headBytes = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (notModified) {
+            connection.write(headBytes);
+        } else {
+            connection.write(headBytes, body.duplicate());
+        }
+        return true;
+    }
+
+    private Page page(Entry entry) {
+        long current = version.get();
+        Page page = entry.page;
+        if (page == null || page.version() != current) {
+            // Racing renders are harmless: a page rendered before an invalidation carries the
+            // old version and is simply rendered again on the next hit
+            page = render(entry, current);
+            entry.page = page;
+        }
+        return page;
+    }
+
+    private static Page render(Entry entry, long version) {
+        byte[] identity = entry.renderer.get().getBytes(StandardCharsets.UTF_8);
+        String tag = ETags.of(identity);
+        String stem = tag.substring(0, tag.length() - 1);
+        return new Page(version, entry.contentType, ByteBuffer.wrap(identity).asReadOnlyBuffer(), tag,
+                variant(identity, "gzip"), stem + "-gz\"", variant(identity, "deflate"), stem + "-df\"");
+    }
+
+    // Null when the encoding would not actually be smaller
+    private static ByteBuffer variant(byte[] identity, String coding) {
+        byte[] encoded = HttpCompression.encode(identity, coding, Deflater.BEST_COMPRESSION);
+        return encoded.length < identity.length ? ByteBuffer.wrap(encoded).asReadOnlyBuffer() : null;
+    }
+}
@@ -1,30 +1,8 @@
-import java.io.*;
-import java.net.*;
-import java.net.URLDecoder;
-import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Locale;
-import java.util.Map;
-import java.util.TimeZone;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.io.IOException;
 
 public class PerfectChatServer {
     private static final int WEB_PORT = 3000;
-    private static final List<PrintWriter> sseClients = new CopyOnWriteArrayList<>();
-    private static final List<String> messageHistory = new CopyOnWriteArrayList<>();
-    private static final Map<String, String> userProfiles = new HashMap<>();
-    private static ServerSocket httpServerSocket;
     private static final String NETWORK_IP = "10.0.0.88";
-    
-    // Settings
-    private static boolean darkMode = true;
-    private static boolean soundEnabled = true;
-    private static boolean notificationsEnabled = true;
-    private static String fontSize = "medium";
 
     public static void main(String[] args) {
         System.out.println("Starting Final LAN Chat Server...");
@@ -37,7 +15,19 @@ public class PerfectChatServer {
         System.out.println("4. Settings: " + url + "settings");
         System.out.println("Messages will appear here when sent from phone");
         
-        startHttpServer();
+        ChatEngine engine = new ChatEngine("PerfectChatServer");
+        engine.subscribe(ChatEngine::log);
+        ChatHttpServer http = new ChatHttpServer(engine, WEB_PORT, NETWORK_IP);
+        http.page("/", PerfectChatServer::renderIndex);
+        http.page("/profile", PerfectChatServer::renderProfilePage);
+        http.page("/settings", PerfectChatServer::renderSettingsPage);
+        http.page("/connect", PerfectChatServer::renderConnectionHelper);
+        try {
+            engine.start(http);
+            System.out.println("Server running on port " + WEB_PORT);
+        } catch (IOException e) {
+            System.err.println("HTTP server error: " + e.getMessage());
+        }
         
         try {
             Thread.currentThread().join();
@@ -46,158 +36,7 @@ public class PerfectChatServer {
         }
     }
 
-    private static void addMessage(String sender, String text) {
-        String time = new SimpleDateFormat("HH:mm").format(new Date());
-        String message = "[" + time + "] " + sender + ": " + text;
-        messageHistory.add(message);
-        System.out.println(message);
-    }
-
-    private static void startHttpServer() {
-        Thread serverThread = new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(WEB_PORT)) {
-                httpServerSocket = serverSocket;
-                System.out.println("Server running on port " + WEB_PORT);
-                
-                while (true) {
-                    Socket client = serverSocket.accept();
-                    new Thread(() -> handleHttpConnection(client), "http-" + client.getPort()).start();
-                }
-            } catch (IOException e) {
-                System.err.println("HTTP server error: " + e.getMessage());
-            }
-        }, "http-server");
-        serverThread.setDaemon(true);
-        serverThread.start();
-    }
-
-    private static void handleHttpConnection(Socket socket) {
-        try (BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
-             OutputStream rawOut = socket.getOutputStream();
-             PrintWriter out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true)) {
-
-            List<String> headers = new ArrayList<>();
-            String requestLine = readLine(in);
-            if (requestLine == null || requestLine.isEmpty()) return;
-            String line;
-            int contentLength = 0;
-            while ((line = readLine(in)) != null && !line.isEmpty()) {
-                headers.add(line);
-                String lower = line.toLowerCase(Locale.ROOT);
-                if (lower.startsWith("content-length:")) {
-                    try { contentLength = Integer.parseInt(lower.split(":", 2)[1].trim()); } catch (Exception ignored) {}
-                }
-            }
-
-            String method = requestLine.split(" ")[0];
-            String path = requestLine.split(" ")[1];
-
-            if ("GET".equals(method) && "/".equals(path)) {
-                serveIndex(out);
-            } else if ("GET".equals(method) && "/events".equals(path)) {
-                handleSse(rawOut, out);
-            } else if ("POST".equals(method) && "/send".equals(path)) {
-                byte[] body = readBody(in, contentLength);
-                String form = new String(body, StandardCharsets.UTF_8);
-                String text = parseFormField(form, "text");
-                String avatar = parseFormField(form, "avatar");
-                String name = parseFormField(form, "name");
-                if (text == null) text = "";
-                String decoded = urlDecode(text);
-                if (!decoded.isEmpty()) {
-                    String displayName = name != null ? name : "Phone";
-                    addMessage(displayName, decoded);
-                    broadcastEvent("phone", decoded, avatar, name);
-                }
-                writeNoContent(out);
-            } else if ("POST".equals(method) && "/profile".equals(path)) {
-                byte[] body = readBody(in, contentLength);
-                String form = new String(body, StandardCharsets.UTF_8);
-                String avatar = parseFormField(form, "avatar");
-                String name = parseFormField(form, "name");
-                String sessionId = parseFormField(form, "sessionId");
-                if (avatar != null && name != null && sessionId != null) {
-                    userProfiles.put(sessionId, avatar + ":" + name);
-                    writeText(out, 200, "OK", "application/json", "{\"success\":true}");
-                } else {
-                    writeText(out, 400, "Bad Request", "application/json", "{\"success\":false}");
-                }
-            } else if ("POST".equals(method) && "/settings".equals(path)) {
-                byte[] body = readBody(in, contentLength);
-                String form = new String(body, StandardCharsets.UTF_8);
-                String setting = parseFormField(form, "setting");
-                String value = parseFormField(form, "value");
-                if (setting != null && value != null) {
-                    updateSetting(setting, value);
-                    writeText(out, 200, "OK", "application/json", "{\"success\":true}");
-                } else {
-                    writeText(out, 400, "Bad Request", "application/json", "{\"success\":false}");
-                }
-            } else if ("GET".equals(method) && "/health".equals(path)) {
-                writeText(out, 200, "OK", "text/plain", "ok");
-            } else if ("GET".equals(method) && "/connect".equals(path)) {
-                serveConnectionHelper(out);
-            } else if ("GET".equals(method) && "/profile".equals(path)) {
-                serveProfilePage(out);
-            } else if ("GET".equals(method) && "/settings".equals(path)) {
-                serveSettingsPage(out);
-            } else if (path.startsWith("/assets/")) {
-                serveAsset(path, rawOut);
-            } else {
-                writeText(out, 404, "Not Found", "text/plain", "Not Found");
-            }
-        } catch (IOException ignored) {
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
-        }
-    }
-
-    private static void updateSetting(String setting, String value) {
-        switch (setting) {
-            case "darkMode":
-                darkMode = "true".equals(value);
-                break;
-            case "soundEnabled":
-                soundEnabled = "true".equals(value);
-                break;
-            case "notificationsEnabled":
-                notificationsEnabled = "true".equals(value);
-                break;
-            case "fontSize":
-                fontSize = value;
-                break;
-        }
-    }
-
-    private static void serveAsset(String path, OutputStream rawOut) throws IOException {
-        String fileName = path.substring("/assets/".length());
-        File assetFile = new File("assets/" + fileName);
-        
-        if (assetFile.exists() && assetFile.isFile()) {
-            String contentType = fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") ? "image/jpeg" : "application/octet-stream";
-            
-            PrintWriter headerOut = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
-            headerOut.print("HTTP/1.1 200 OK\r\n");
-            headerOut.print("Content-Type: " + contentType + "\r\n");
-            headerOut.print("Content-Length: " + assetFile.length() + "\r\n");
-            headerOut.print("Cache-Control: public, max-age=3600\r\n\r\n");
-            headerOut.flush();
-            
-            try (FileInputStream fis = new FileInputStream(assetFile)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    rawOut.write(buffer, 0, bytesRead);
-                }
-                rawOut.flush();
-            }
-        } else {
-            PrintWriter headerOut = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
-            writeText(headerOut, 404, "Not Found", "text/plain", "Asset not found");
-        }
-    }
-
-    private static void serveProfilePage(PrintWriter out) {
+    private static String renderProfilePage() {
         String html = "" +
                 "<!doctype html>\n" +
                 "<html><head><meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">" +
@@ -308,7 +147,8 @@ public class PerfectChatServer {
                 "<script>" +
                 "let selectedAvatar = null;" +
                 "let selectedName = '';" +
-                "let sessionId = 'session_' + Date.now();" +
+                "let sessionId = localStorage.getItem('sessionId') || ('session_' + Date.now());" +
+                "localStorage.setItem('sessionId', sessionId);" +
                 "const maxNameLength = 20;" +
                 
                 "const nameInput = document.getElementById('displayName');" +
@@ -316,7 +156,7 @@ public class PerfectChatServer {
                 "const saveBtn = document.getElementById('saveProfile');" +
                 "const statusMsg = document.getElementById('statusMessage');" +
                 
-                "// Load saved profile on page load" +
+                "/* Load saved profile on page load */" +
                 "window.onload = () => {" +
                 "  const savedAvatar = localStorage.getItem('userAvatar');" +
                 "  const savedName = localStorage.getItem('userName');" +
@@ -332,7 +172,7 @@ public class PerfectChatServer {
                 "  }" +
                 "};" +
                 
-                "// Name input handling" +
+                "/* Name input handling */" +
                 "nameInput.addEventListener('input', function() {" +
                 "  selectedName = this.value.trim();" +
                 "  updateCharCount();" +
@@ -363,11 +203,11 @@ public class PerfectChatServer {
                 "  const currentName = document.getElementById('currentName');" +
                 "  const currentDesc = document.getElementById('currentDescription');" +
                 "  " +
-                "  currentAvatar.innerHTML = '<img src=\"/assets/' + avatarId + '.jpg\" class=\"current-avatar\" />';" +
+                "  currentAvatar.innerHTML = '<img src=\"/assets/' + avatarId + '.jpg?w=128\" class=\"current-avatar\" />';" +
                 "  currentName.textContent = avatarName;" +
                 "  currentDesc.textContent = 'Your avatar will appear in chat messages';" +
                 "  " +
-                "  // Update selection visual" +
+                "  /* Update selection visual */" +
                 "  document.querySelectorAll('.avatar-option').forEach(opt => opt.classList.remove('selected'));" +
                 "  document.querySelectorAll('.avatar-option').forEach(opt => {" +
                 "    if (opt.getAttribute('data-avatar') === avatarId) opt.classList.add('selected');" +
@@ -416,7 +256,7 @@ public class PerfectChatServer {
                 "  " +
                 "  fetch('/profile', {" +
                 "    method: 'POST'," +
-                "    body: formData" +
+                "    body: new URLSearchParams(formData)" +
                 "  }).then(response => response.json())" +
                 "    .then(data => {" +
                 "      if (data.success) {" +
@@ -435,10 +275,10 @@ public class PerfectChatServer {
                 "}" +
                 "</script>" +
                 "</body></html>";
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
-    private static void serveSettingsPage(PrintWriter out) {
+    private static String renderSettingsPage() {
         String html = "" +
                 "<!doctype html>\n" +
                 "<html><head><meta name=\"viewport\" content=\"width=device-width, initial-scale=1\">" +
@@ -537,11 +377,21 @@ public class PerfectChatServer {
                 "</div>" +
                 
                 "<script>" +
-                "// Load current settings on page load" +
+                "/* Load current settings on page load */" +
                 "window.onload = () => {" +
                 "  loadSettings();" +
                 "};" +
                 
+                "/* Follow changes made from other devices */" +
+                "const settingsEvents = new EventSource('/events?settings=1');" +
+                "settingsEvents.addEventListener('settings', e => {" +
+                "  try {" +
+                "    const s = JSON.parse(e.data);" +
+                "    for (const key in s) localStorage.setItem(key, String(s[key]));" +
+                "    loadSettings();" +
+                "  } catch (_) {}" +
+                "});" +
+                
                 "function loadSettings() {" +
                 "  const settings = {" +
                 "    darkMode: localStorage.getItem('darkMode') !== 'false'," +
@@ -574,12 +424,12 @@ public class PerfectChatServer {
                 "  formData.append('setting', setting);" +
                 "  formData.append('value', value);" +
                 "  " +
-                "  // Save to localStorage immediately" +
+                "  /* Save to localStorage immediately */" +
                 "  localStorage.setItem(setting, value);" +
                 "  " +
                 "  fetch('/settings', {" +
                 "    method: 'POST'," +
-                "    body: formData" +
+                "    body: new URLSearchParams(formData)" +
                 "  }).then(response => response.json())" +
                 "    .then(data => {" +
                 "      if (data.success) {" +
@@ -603,7 +453,7 @@ public class PerfectChatServer {
                 "}" +
                 "</script>" +
                 "</body></html>";
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
     private static String generateAvatarOptions() {
@@ -621,7 +471,7 @@ public class PerfectChatServer {
             String avatarId = "avatar_" + i;
             String avatarName = avatarNames[nameIndex];
             options.append("<div class=\"avatar-option\" onclick=\"selectAvatar('").append(avatarId).append("', '").append(avatarName).append("')\">");
-            options.append("<img src=\"/assets/").append(avatarId).append(".jpg\" class=\"avatar-img\" />");
+            options.append("<img src=\"/assets/").append(avatarId).append(".jpg?w=128\" class=\"avatar-img\" loading=\"lazy\" />");
             options.append("<div class=\"avatar-name\">").append(avatarName).append("</div>");
             options.append("</div>");
             nameIndex++;
@@ -653,7 +503,7 @@ public class PerfectChatServer {
             String avatarName = avatarNames[nameIndex];
             String description = descriptions[nameIndex];
             options.append("<div class=\"avatar-option\" data-avatar=\"").append(avatarId).append("\" onclick=\"selectAvatar('").append(avatarId).append("', '").append(avatarName).append("')\">");
-            options.append("<img src=\"/assets/").append(avatarId).append(".jpg\" class=\"avatar-img\" />");
+            options.append("<img src=\"/assets/").append(avatarId).append(".jpg?w=128\" class=\"avatar-img\" loading=\"lazy\" />");
             options.append("<div class=\"avatar-name\">").append(avatarName).append("</div>");
             options.append("<div class=\"avatar-description\">").append(description).append("</div>");
             options.append("</div>");
@@ -663,7 +513,7 @@ public class PerfectChatServer {
         return options.toString();
     }
 
-    private static void serveConnectionHelper(PrintWriter out) {
+    private static String renderConnectionHelper() {
         String url = "http://" + NETWORK_IP + ":" + WEB_PORT + "/";
         String html = "" +
                 "<!doctype html>\n" +
@@ -697,10 +547,10 @@ public class PerfectChatServer {
                 "<a href=\"/settings\" class=\"btn\">Settings</a>" +
                 "</div>" +
                 "</body></html>";
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
-    private static void serveIndex(PrintWriter out) {
+    private static String renderIndex() {
         String url = "http://" + NETWORK_IP + ":" + WEB_PORT + "/";
         String html = "" +
                 "<!doctype html>\n" +
@@ -786,8 +636,11 @@ public class PerfectChatServer {
                 "const log = document.getElementById('log');" +
                 "let userAvatar = null;" +
                 "let userName = null;" +
-                "let sessionId = 'session_' + Date.now();" +
+                "let sessionId = localStorage.getItem('sessionId') || ('session_' + Date.now());" +
+                "localStorage.setItem('sessionId', sessionId);" +
                 "let messageCount = 0;" +
+                "const room = new URLSearchParams(location.search).get('room');" +
+                "const roomQuery = room ? '?room=' + encodeURIComponent(room) : '';" +
                 
                 "function add(sender, text, avatar = null, name = null) {" +
                 "  messageCount++;" +
@@ -807,7 +660,7 @@ public class PerfectChatServer {
                 "  " +
                 "  if (avatar) {" +
                 "    const avatarImg = document.createElement('img');" +
-                "    avatarImg.src = '/assets/' + avatar + '.jpg';" +
+                "    avatarImg.src = '/assets/' + avatar + '.jpg?w=64';" +
                 "    avatarImg.className = 'avatar';" +
                 "    avatarImg.onerror = function() {" +
                 "      this.style.display = 'none';" +
@@ -832,15 +685,39 @@ public class PerfectChatServer {
                 "  log.scrollTop = log.scrollHeight;" +
                 "}" +
                 
-                "const ev = new EventSource('/events');" +
-                "ev.onmessage = e => {" +
-                "  try {" +
-                "    const m = JSON.parse(e.data);" +
-                "    if (m.sender !== 'system') {" +
-                "      add(m.sender, m.text, m.avatar, m.name);" +
-                "    }" +
-                "  } catch (_) {}" +
-                "};" +
+                "let ws = null;" +
+                "let lastId = 0;" +
+                "function received(m, id) {" +
+                "  if (id) lastId = id;" +
+                "  if (m.sender !== 'system') {" +
+                "    add(m.sender, m.text, m.avatar, m.name);" +
+                "  }" +
+                "}" +
+                "function listenEvents() {" +
+                "  const ev = new EventSource('/events' + roomQuery);" +
+                "  ev.onmessage = e => {" +
+                "    try { received(JSON.parse(e.data)); } catch (_) {}" +
+                "  };" +
+                "}" +
+                "function connect() {" +
+                "  const url = (location.protocol === 'https:' ? 'wss://' : 'ws://') + location.host + '/ws'" +
+                "    + (roomQuery ? roomQuery + '&' : '?') + 'sessionId=' + encodeURIComponent(sessionId)" +
+                "    + (lastId ? '&lastEventId=' + lastId : '');" +
+                "  const socket = new WebSocket(url);" +
+                "  let opened = false;" +
+                "  socket.onopen = () => { opened = true; ws = socket; };" +
+                "  socket.onmessage = e => {" +
+                "    try {" +
+                "      const f = JSON.parse(e.data);" +
+                "      if (f.event === 'message') received(f.data, f.id);" +
+                "    } catch (_) {}" +
+                "  };" +
+                "  socket.onclose = () => {" +
+                "    ws = null;" +
+                "    if (opened) setTimeout(connect, 3000); else listenEvents();" +
+                "  };" +
+                "}" +
+                "if (window.WebSocket) connect(); else listenEvents();" +
                 
                 "const input = document.getElementById('text');" +
                 "const btn = document.getElementById('send');" +
@@ -849,21 +726,17 @@ public class PerfectChatServer {
                 "  const t = input.value.trim();" +
                 "  if (!t) return;" +
                 "  " +
-                "  const formData = new FormData();" +
-                "  formData.append('text', t);" +
-                "  if (userAvatar) {" +
-                "    formData.append('avatar', userAvatar);" +
-                "  }" +
-                "  if (userName) {" +
-                "    formData.append('name', userName);" +
+                "  if (ws && ws.readyState === WebSocket.OPEN) {" +
+                "    ws.send(t);" +
+                "  } else {" +
+                "    const formData = new FormData();" +
+                "    formData.append('text', t);" +
+                "    formData.append('sessionId', sessionId);" +
+                "    fetch('/send' + roomQuery, {" +
+                "      method: 'POST'," +
+                "      body: new URLSearchParams(formData)" +
+                "    });" +
                 "  }" +
-                "  " +
-                "  fetch('/send', {" +
-                "    method: 'POST'," +
-                "    body: formData" +
-                "  });" +
-                "  " +
-                "  add('phone', t, userAvatar, userName);" +
                 "  input.value = '';" +
                 "}" +
                 
@@ -897,144 +770,16 @@ public class PerfectChatServer {
                 "  const savedName = localStorage.getItem('userName');" +
                 "  if (savedAvatar) userAvatar = savedAvatar;" +
                 "  if (savedName) userName = savedName;" +
+                "  /* Re-register so the server knows this session even after it restarted */" +
+                "  if (userAvatar && userName) {" +
+                "    fetch('/profile', {" +
+                "      method: 'POST'," +
+                "      body: new URLSearchParams({avatar: userAvatar, name: userName, sessionId: sessionId})" +
+                "    });" +
+                "  }" +
                 "};" +
                 "</script>" +
                 "</body></html>";
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
-    }
-
-    private static void handleSse(OutputStream rawOut, PrintWriter headerOut) {
-        headerOut.print("HTTP/1.1 200 OK\r\n");
-        headerOut.print("Content-Type: text/event-stream\r\n");
-        headerOut.print("Cache-Control: no-cache\r\n");
-        headerOut.print("Connection: keep-alive\r\n\r\n");
-        headerOut.flush();
-
-        PrintWriter eventWriter = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
-        sseClients.add(eventWriter);
-    }
-
-    private static void broadcastEvent(String sender, String text) {
-        broadcastEvent(sender, text, null, null);
-    }
-
-    private static void broadcastEvent(String sender, String text, String avatar, String name) {
-        StringBuilder json = new StringBuilder();
-        json.append("{\"sender\":\"").append(escapeJson(sender)).append("\",\"text\":\"").append(escapeJson(text)).append("\"");
-        if (avatar != null) {
-            json.append(",\"avatar\":\"").append(escapeJson(avatar)).append("\"");
-        }
-        if (name != null) {
-            json.append(",\"name\":\"").append(escapeJson(name)).append("\"");
-        }
-        json.append("}");
-        
-        List<PrintWriter> toRemove = new ArrayList<>();
-        for (PrintWriter w : sseClients) {
-            if (!sendSse(w, json.toString())) {
-                toRemove.add(w);
-            }
-        }
-        sseClients.removeAll(toRemove);
-    }
-
-    private static boolean sendSse(PrintWriter w, String data) {
-        try {
-            w.print("data: ");
-            w.print(data);
-            w.print("\n\n");
-            w.flush();
-            return !w.checkError();
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-    private static void writeNoContent(PrintWriter out) {
-        out.print("HTTP/1.1 204 No Content\r\n");
-        out.print("Date: " + httpDate() + "\r\n");
-        out.print("Content-Length: 0\r\n\r\n");
-        out.flush();
-    }
-
-    private static void writeText(PrintWriter out, int code, String reason, String contentType, String body) {
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        out.print("HTTP/1.1 " + code + " " + reason + "\r\n");
-        out.print("Date: " + httpDate() + "\r\n");
-        out.print("Content-Type: " + contentType + "\r\n");
-        out.print("Content-Length: " + bytes.length + "\r\n\r\n");
-        out.flush();
-        try {
-            out.write(body);
-            out.flush();
-        } catch (Exception ignored) {}
-    }
-
-    private static String httpDate() {
-        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return fmt.format(new Date());
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        int prev = -1;
-        while (true) {
-            int b = in.read();
-            if (b == -1) break;
-            if (prev == '\r' && b == '\n') break;
-            if (b != '\r') buf.write(b);
-            prev = b;
-        }
-        return buf.toString(StandardCharsets.UTF_8);
-    }
-
-    private static byte[] readBody(InputStream in, int length) throws IOException {
-        byte[] body = new byte[length];
-        int read = 0;
-        while (read < length) {
-            int r = in.read(body, read, length - read);
-            if (r == -1) break;
-            read += r;
-        }
-        return body;
-    }
-
-    private static String parseFormField(String form, String key) {
-        String[] parts = form.split("&");
-        for (String p : parts) {
-            int idx = p.indexOf('=');
-            if (idx > 0) {
-                String k = p.substring(0, idx);
-                String v = p.substring(idx + 1);
-                if (k.equals(key)) return v;
-            }
-        }
-        return null;
-    }
-
-    private static String urlDecode(String s) {
-        try { return URLDecoder.decode(s, StandardCharsets.UTF_8.name()); } catch (UnsupportedEncodingException e) { return s; }
-    }
-
-    private static String escapeJson(String s) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            switch (c) {
-                case '"': sb.append("\\\""); break;
-                case '\\': sb.append("\\\\"); break;
-                case '\n': sb.append("\\n"); break;
-                case '\r': sb.append("\\r"); break;
-                case '\t': sb.append("\\t"); break;
-                default:
-                    if (c < 0x20) {
-                        sb.append(String.format("\\u%04x", (int)c));
-                    } else {
-                        sb.append(c);
-                    }
-            }
-        }
-        return sb.toString();
+        return html;
     }
 }
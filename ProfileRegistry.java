@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Display profiles (avatar and name) of browser sessions, keyed by the session id the page
+ * generates. Lookups are a plain ConcurrentHashMap read. A session is dropped once it has
+ * not been seen for the idle timeout or is older than the TTL, and when the registry grows
+ * past its bound the least recently seen sessions are evicted first. Expired entries are
+ * swept on writes, so there is no cleanup thread.
+ */
+final class ProfileRegistry {
+    record Profile(String avatar, String name) {}
+
+    private static final class Entry {
+        final Profile profile;
+        final long created;
+        volatile long lastSeen;
+
+        Entry(Profile profile, long now) {
+            this.profile = profile;
+            this.created = now;
+            this.lastSeen = now;
+        }
+    }
+
+    private record Candidate(String sessionId, Entry entry, long seen) {}
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long ttlNanos;
+    private final long idleNanos;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    ProfileRegistry(int maxSize, long ttlSeconds, long idleSeconds) {
+        this.maxSize = Math.max(1, maxSize);
+        this.ttlNanos = ttlSeconds > 0 ? TimeUnit.SECONDS.toNanos(ttlSeconds) : Long.MAX_VALUE;
+        this.idleNanos = idleSeconds > 0 ? TimeUnit.SECONDS.toNanos(idleSeconds) : Long.MAX_VALUE;
+    }
+
+    static ProfileRegistry fromConfig() {
+        return new ProfileRegistry(ChatConfig.getInt("profiles.max", 10000),
+                ChatConfig.getLong("profiles.ttl.seconds", 24 * 60 * 60),
+                ChatConfig.getLong("profiles.idle.seconds", 60 * 60));
+    }
+
+    void put(String sessionId, Profile profile) {
+        long now = System.nanoTime();
+        entries.put(sessionId, new Entry(profile, now));
+        if (entries.size() > maxSize || now - lastSweep.get() > SWEEP_INTERVAL_NANOS) sweep(now);
+    }
+
+    /** The live profile of a session, or null; a hit counts as activity. */
+    Profile get(String sessionId) {
+        if (sessionId == null) return null;
+        Entry entry = entries.get(sessionId);
+        if (entry == null) return null;
+        long now = System.nanoTime();
+        if (expired(entry, now)) {
+            entries.remove(sessionId, entry);
+            return null;
+        }
+        entry.lastSeen = now;
+        return entry.profile;
+    }
+
+    void remove(String sessionId) {
+        entries.remove(sessionId);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private boolean expired(Entry entry, long now) {
+        return now - entry.created > ttlNanos || now - entry.lastSeen > idleNanos;
+    }
+
+    // One sweeper at a time; writers that lose the race just carry on
+    private void sweep(long now) {
+        if (!sweeping.compareAndSet(false, true)) return;
+        try {
+            lastSweep.set(now);
+            entries.entrySet().removeIf(e -> expired(e.getValue(), now));
+            int excess = entries.size() - maxSize;
+            if (excess <= 0) return;
+            // Evict down to 90% of the bound so a full registry does not sort on every put
+            excess += maxSize / 10;
+            // lastSeen keeps moving, so sort on a snapshot of it
+            List<Candidate> oldest = new ArrayList<>(entries.size());
+            entries.forEach((id, e) -> oldest.add(new Candidate(id, e, e.lastSeen)));
+            oldest.sort(Comparator.comparingLong(Candidate::seen));
+            for (int i = 0; i < excess && i < oldest.size(); i++) {
+                entries.remove(oldest.get(i).sessionId(), oldest.get(i).entry());
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Small QR code encoder (ISO/IEC 18004) for the session codes phones scan: byte mode,
+ * error correction level M, versions 1 to 10 (up to 213 bytes), with the mask picked by
+ * the standard penalty rules. The symbol is rendered as SVG, so no image library is needed.
+ */
+final class QrCode {
+    private static final int MAX_VERSION = 10;
+    // Level M, indexed by version
+    private static final int[] ECC_CODEWORDS_PER_BLOCK = {-1, 10, 16, 26, 18, 24, 16, 18, 22, 22, 26};
+    private static final int[] ERROR_CORRECTION_BLOCKS = {-1, 1, 1, 1, 2, 2, 4, 4, 4, 5, 5};
+    // Format bits of level M
+    private static final int ECL_FORMAT_BITS = 0;
+
+    private final int version;
+    private final int size;
+    private final boolean[][] modules;
+    private final boolean[][] isFunction;
+
+    private QrCode(int version) {
+        this.version = version;
+        this.size = version * 4 + 17;
+        this.modules = new boolean[size][size];
+        this.isFunction = new boolean[size][size];
+    }
+
+    /** Encodes {@code text} as UTF-8; throws IllegalArgumentException if it does not fit version 10. */
+    static QrCode encode(String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        int version = 1;
+        while (4 + (version < 10 ? 8 : 16) + data.length * 8 > dataCodewords(version) * 8) {
+            if (++version > MAX_VERSION) throw new IllegalArgumentException("Text too long for a QR code");
+        }
+        int capacityBits = dataCodewords(version) * 8;
+        BitBuffer bits = new BitBuffer(capacityBits);
+        bits.append(0b0100, 4);
+        bits.append(data.length, version < 10 ? 8 : 16);
+        for (byte b : data) bits.append(b & 0xFF, 8);
+        bits.append(0, Math.min(4, capacityBits - bits.length));
+        bits.append(0, (8 - bits.length % 8) % 8);
+        for (int pad = 0xEC; bits.length < capacityBits; pad ^= 0xEC ^ 0x11) bits.append(pad, 8);
+
+        QrCode qr = new QrCode(version);
+        qr.drawFunctionPatterns();
+        qr.drawCodewords(qr.addEccAndInterleave(bits.bytes));
+        int bestMask = 0;
+        int minPenalty = Integer.MAX_VALUE;
+        for (int mask = 0; mask < 8; mask++) {
+            qr.applyMask(mask);
+            qr.drawFormatBits(mask);
+            int penalty = qr.penaltyScore();
+            if (penalty < minPenalty) {
+                bestMask = mask;
+                minPenalty = penalty;
+            }
+            qr.applyMask(mask);
+        }
+        qr.applyMask(bestMask);
+        qr.drawFormatBits(bestMask);
+        return qr;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isDark(int x, int y) {
+        return modules[y][x];
+    }
+
+    /** The symbol as SVG with a light quiet zone of {@code border} modules, each module {@code scale} pixels. */
+    String toSvg(int border, int scale) {
+        int dimension = size + border * 2;
+        StringBuilder path = new StringBuilder();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (!modules[y][x]) continue;
+                int run = 1;
+                while (x + run < size && modules[y][x + run]) run++;
+                path.append('M').append(x + border).append(',').append(y + border)
+                        .append('h').append(run).append("v1h-").append(run).append('z');
+                x += run - 1;
+            }
+        }
+        return "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + dimension * scale + "\" height=\"" + dimension * scale
+                + "\" viewBox=\"0 0 " + dimension + " " + dimension + "\" shape-rendering=\"crispEdges\">"
+                + "<rect width=\"100%\" height=\"100%\" fill=\"#fff\"/>"
+                + "<path d=\"" + path + "\" fill=\"#000\"/></svg>";
+    }
+
+    private void drawFunctionPatterns() {
+        for (int i = 0; i < size; i++) {
+            setFunction(6, i, i % 2 == 0);
+            setFunction(i, 6, i % 2 == 0);
+        }
+        drawFinder(3, 3);
+        drawFinder(size - 4, 3);
+        drawFinder(3, size - 4);
+        int[] align = alignmentPositions();
+        for (int i = 0; i < align.length; i++) {
+            for (int j = 0; j < align.length; j++) {
+                // Skip the three corners taken by finder patterns
+                if ((i == 0 && j == 0) || (i == 0 && j == align.length - 1) || (i == align.length - 1 && j == 0)) continue;
+                drawAlignment(align[i], align[j]);
+            }
+        }
+        // Reserve the format areas; the real bits are drawn once the mask is known
+        drawFormatBits(0);
+        drawVersion();
+    }
+
+    private void drawFinder(int cx, int cy) {
+        for (int dy = -4; dy <= 4; dy++) {
+            for (int dx = -4; dx <= 4; dx++) {
+                int x = cx + dx;
+                int y = cy + dy;
+                if (x < 0 || x >= size || y < 0 || y >= size) continue;
+                int distance = Math.max(Math.abs(dx), Math.abs(dy));
+                setFunction(x, y, distance != 2 && distance != 4);
+            }
+        }
+    }
+
+    private void drawAlignment(int cx, int cy) {
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                setFunction(cx + dx, cy + dy, Math.max(Math.abs(dx), Math.abs(dy)) != 1);
+            }
+        }
+    }
+
+    private void drawFormatBits(int mask) {
+        int data = ECL_FORMAT_BITS << 3 | mask;
+        int rem = data;
+        for (int i = 0; i < 10; i++) rem = (rem << 1) ^ ((rem >>> 9) * 0x537);
+        int bits = (data << 10 | rem) ^ 0x5412;
+        // Around the top left finder
+        for (int i = 0; i <= 5; i++) setFunction(8, i, bit(bits, i));
+        setFunction(8, 7, bit(bits, 6));
+        setFunction(8, 8, bit(bits, 7));
+        setFunction(7, 8, bit(bits, 8));
+        for (int i = 9; i < 15; i++) setFunction(14 - i, 8, bit(bits, i));
+        // Split between the other two finders
+        for (int i = 0; i < 8; i++) setFunction(size - 1 - i, 8, bit(bits, i));
+        for (int i = 8; i < 15; i++) setFunction(8, size - 15 + i, bit(bits, i));
+        setFunction(8, size - 8, true);
+    }
+
+    private void drawVersion() {
+        if (version < 7) return;
+        int rem = version;
+        for (int i = 0; i < 12; i++) rem = (rem << 1) ^ ((rem >>> 11) * 0x1F25);
+        int bits = version << 12 | rem;
+        for (int i = 0; i < 18; i++) {
+            boolean dark = bit(bits, i);
+            int a = size - 11 + i % 3;
+            int b = i / 3;
+            setFunction(a, b, dark);
+            setFunction(b, a, dark);
+        }
+    }
+
+    // Splits the data into blocks, appends each block's Reed-Solomon codewords and interleaves them
+    private byte[] addEccAndInterleave(byte[] data) {
+        int blocks = ERROR_CORRECTION_BLOCKS[version];
+        int eccLength = ECC_CODEWORDS_PER_BLOCK[version];
+        int rawCodewords = rawDataModules(version) / 8;
+        int shortBlocks = blocks - rawCodewords % blocks;
+        int shortBlockLength = rawCodewords / blocks;
+        byte[] divisor = reedSolomonDivisor(eccLength);
+        byte[][] filled = new byte[blocks][];
+        for (int i = 0, k = 0; i < blocks; i++) {
+            int dataLength = shortBlockLength - eccLength + (i < shortBlocks ? 0 : 1);
+            byte[] block = new byte[shortBlockLength + 1];
+            System.arraycopy(data, k, block, 0, dataLength);
+            k += dataLength;
+            byte[] ecc = reedSolomonRemainder(data, k - dataLength, dataLength, divisor);
+            // Short blocks keep a gap where long blocks have their extra data byte
+            System.arraycopy(ecc, 0, block, block.length - eccLength, eccLength);
+            filled[i] = block;
+        }
+        byte[] result = new byte[rawCodewords];
+        for (int i = 0, k = 0; i < shortBlockLength + 1; i++) {
+            for (int j = 0; j < blocks; j++) {
+                if (i != shortBlockLength - eccLength || j >= shortBlocks) result[k++] = filled[j][i];
+            }
+        }
+        return result;
+    }
+
+    // Zigzags up and down two-module columns from the right, skipping function modules
+    private void drawCodewords(byte[] data) {
+        int i = 0;
+        for (int right = size - 1; right >= 1; right -= 2) {
+            if (right == 6) right = 5;
+            for (int vertical = 0; vertical < size; vertical++) {
+                for (int j = 0; j < 2; j++) {
+                    int x = right - j;
+                    boolean upward = ((right + 1) & 2) == 0;
+                    int y = upward ? size - 1 - vertical : vertical;
+                    if (!isFunction[y][x] && i < data.length * 8) {
+                        modules[y][x] = bit(data[i >>> 3], 7 - (i & 7));
+                        i++;
+                    }
+                }
+            }
+        }
+    }
+
+    // XORs the data modules with a mask pattern; applying it twice undoes it
+    private void applyMask(int mask) {
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                boolean invert;
+                switch (mask) {
+                    case 0: invert = (x + y) % 2 == 0; break;
+                    case 1: invert = y % 2 == 0; break;
+                    case 2: invert = x % 3 == 0; break;
+                    case 3: invert = (x + y) % 3 == 0; break;
+                    case 4: invert = (x / 3 + y / 2) % 2 == 0; break;
+                    case 5: invert = x * y % 2 + x * y % 3 == 0; break;
+                    case 6: invert = (x * y % 2 + x * y % 3) % 2 == 0; break;
+                    default: invert = ((x + y) % 2 + x * y % 3) % 2 == 0; break;
+                }
+                modules[y][x] ^= invert && !isFunction[y][x];
+            }
+        }
+    }
+
+    private int penaltyScore() {
+        int result = 0;
+        for (int a = 0; a < size; a++) {
+            result += linePenalty(a, true) + linePenalty(a, false);
+        }
+        for (int y = 0; y < size - 1; y++) {
+            for (int x = 0; x < size - 1; x++) {
+                boolean c = modules[y][x];
+                if (c == modules[y][x + 1] && c == modules[y + 1][x] && c == modules[y + 1][x + 1]) result += 3;
+            }
+        }
+        int dark = 0;
+        for (boolean[] row : modules) {
+            for (boolean m : row) if (m) dark++;
+        }
+        int total = size * size;
+        result += ((Math.abs(dark * 20 - total * 10) + total - 1) / total - 1) * 10;
+        return result;
+    }
+
+    // Runs of five or more, and finder-like 1:1:3:1:1 patterns with four light modules on one side
+    private int linePenalty(int index, boolean row) {
+        int result = 0;
+        int run = 0;
+        boolean runColor = false;
+        int pattern = 0;
+        for (int i = 0; i < size; i++) {
+            boolean dark = row ? modules[index][i] : modules[i][index];
+            if (i > 0 && dark == runColor) {
+                run++;
+                if (run == 5) result += 3;
+                else if (run > 5) result++;
+            } else {
+                runColor = dark;
+                run = 1;
+            }
+            pattern = ((pattern << 1) | (dark ? 1 : 0)) & 0x7FF;
+            if (i >= 10 && (pattern == 0b10111010000 || pattern == 0b00001011101)) result += 40;
+        }
+        return result;
+    }
+
+    private void setFunction(int x, int y, boolean dark) {
+        modules[y][x] = dark;
+        isFunction[y][x] = true;
+    }
+
+    private int[] alignmentPositions() {
+        if (version == 1) return new int[0];
+        int count = version / 7 + 2;
+        int step = (version * 4 + count * 2 + 1) / (count * 2 - 2) * 2;
+        int[] result = new int[count];
+        result[0] = 6;
+        for (int i = count - 1, position = size - 7; i >= 1; i--, position -= step) result[i] = position;
+        return result;
+    }
+
+    private static int rawDataModules(int version) {
+        int result = (16 * version + 128) * version + 64;
+        if (version >= 2) {
+            int align = version / 7 + 2;
+            result -= (25 * align - 10) * align - 55;
+            if (version >= 7) result -= 36;
+        }
+        return result;
+    }
+
+    private static int dataCodewords(int version) {
+        return rawDataModules(version) / 8 - ECC_CODEWORDS_PER_BLOCK[version] * ERROR_CORRECTION_BLOCKS[version];
+    }
+
+    private static byte[] reedSolomonDivisor(int degree) {
+        byte[] result = new byte[degree];
+        result[degree - 1] = 1;
+        int root = 1;
+        for (int i = 0; i < degree; i++) {
+            for (int j = 0; j < result.length; j++) {
+                result[j] = (byte) multiply(result[j] & 0xFF, root);
+                if (j + 1 < result.length) result[j] ^= result[j + 1];
+            }
+            root = multiply(root, 0x02);
+        }
+        return result;
+    }
+
+    private static byte[] reedSolomonRemainder(byte[] data, int offset, int length, byte[] divisor) {
+        byte[] result = new byte[divisor.length];
+        for (int i = offset; i < offset + length; i++) {
+            int factor = (data[i] ^ result[0]) & 0xFF;
+            System.arraycopy(result, 1, result, 0, result.length - 1);
+            result[result.length - 1] = 0;
+            for (int j = 0; j < result.length; j++) result[j] ^= (byte) multiply(divisor[j] & 0xFF, factor);
+        }
+        return result;
+    }
+
+    // Product in GF(2^8) modulo x^8 + x^4 + x^3 + x^2 + 1
+    private static int multiply(int x, int y) {
+        int z = 0;
+        for (int i = 7; i >= 0; i--) {
+            z = (z << 1) ^ ((z >>> 7) * 0x11D);
+            z ^= ((y >>> i) & 1) * x;
+        }
+        return z;
+    }
+
+    private static boolean bit(int value, int index) {
+        return ((value >>> index) & 1) != 0;
+    }
+
+    private static final class BitBuffer {
+        final byte[] bytes;
+        int length;
+
+        BitBuffer(int capacityBits) {
+            bytes = new byte[capacityBits / 8];
+        }
+
+        void append(int value, int count) {
+            for (int i = count - 1; i >= 0; i--, length++) {
+                if (((value >>> i) & 1) != 0) bytes[length >>> 3] |= (byte) (0x80 >>> (length & 7));
+            }
+        }
+    }
+}
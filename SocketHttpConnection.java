@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Blocking connection backed by a Socket (legacy engine)
+final class SocketHttpConnection implements HttpConnection {
+    private static final long WRITE_TIMEOUT_MILLIS = ChatConfig.getLong("http.write.timeout.millis", 30000);
+    // Closes sockets whose peer stopped reading, which unblocks the stuck write
+    private static final ScheduledExecutorService WRITE_WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "http-write-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+    // Numbers the upgraded-socket reader threads
+    private static final AtomicInteger UPGRADED = new AtomicInteger();
+    // One thread per upgraded socket, so long-lived WebSockets never hold a handler-pool worker
+    private static final ExecutorService UPGRADE_READERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "http-upgraded-" + UPGRADED.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Socket socket;
+    private final SocketChannel channel;
+    private final InputStream input;
+    private final OutputStream output;
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private int requests;
+
+    SocketHttpConnection(Socket socket, int idleTimeoutMillis) throws IOException {
+        this.socket = socket;
+        // Bounds both the wait for the first request and the idle gap between keep-alive requests
+        socket.setSoTimeout(Math.max(0, idleTimeoutMillis));
+        this.channel = socket.getChannel();
+        this.input = socket.getInputStream();
+        this.output = socket.getOutputStream();
+    }
+
+    @Override
+    public HttpRequest readRequest() throws IOException {
+        return parser.read(input);
+    }
+
+    @Override
+    public OutputStream output() {
+        return output;
+    }
+
+    // Synchronized because an upgraded connection is written by its reader and by broadcasts
+    @Override
+    public synchronized void write(ByteBuffer... buffers) throws IOException {
+        ScheduledFuture<?> timeout = armWriteTimeout();
+        try {
+            if (channel != null) {
+                long remaining = 0;
+                for (ByteBuffer b : buffers) remaining += b.remaining();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                return;
+            }
+            byte[] chunk = new byte[8192];
+            for (ByteBuffer b : buffers) {
+                while (b.hasRemaining()) {
+                    int n = Math.min(chunk.length, b.remaining());
+                    b.get(chunk, 0, n);
+                    output.write(chunk, 0, n);
+                }
+            }
+            output.flush();
+        } finally {
+            if (timeout != null) timeout.cancel(false);
+        }
+    }
+
+    @Override
+    public synchronized void transferFrom(FileChannel file, long position, long count) throws IOException {
+        ScheduledFuture<?> timeout = armWriteTimeout();
+        try (file) {
+            output.flush();
+            long end = position + count;
+            if (channel != null) {
+                while (position < end) {
+                    long n = file.transferTo(position, end - position, channel);
+                    if (n <= 0 && position >= file.size()) throw new IOException("File shrank while sending");
+                    position += n;
+                }
+                return;
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(8192);
+            while (position < end) {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), end - position));
+                int n = file.read(chunk, position);
+                if (n < 0) throw new IOException("File shrank while sending");
+                output.write(chunk.array(), 0, n);
+                position += n;
+            }
+            output.flush();
+        } finally {
+            if (timeout != null) timeout.cancel(false);
+        }
+    }
+
+    @Override
+    public boolean whenWritten(Runnable then) {
+        return true;
+    }
+
+    // A write still blocked after the timeout means the peer stopped reading; the socket is closed under it
+    private ScheduledFuture<?> armWriteTimeout() {
+        if (WRITE_TIMEOUT_MILLIS <= 0) return null;
+        return WRITE_WATCHDOG.schedule(() -> {
+            try { socket.close(); } catch (IOException ignored) {}
+        }, WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int nextRequest() {
+        return ++requests;
+    }
+
+    @Override
+    public boolean resumeReading() {
+        return false;
+    }
+
+    @Override
+    public void upgrade(Protocol protocol) throws IOException {
+        // The protocol keeps its own liveness (pings), so reads no longer time out
+        socket.setSoTimeout(0);
+        UPGRADE_READERS.execute(() -> readUpgraded(protocol));
+    }
+
+    private void readUpgraded(Protocol protocol) {
+        try {
+            ByteBuffer rest = parser.drain();
+            if (rest.hasRemaining()) protocol.onData(rest);
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = input.read(chunk)) >= 0) {
+                if (n > 0) protocol.onData(ByteBuffer.wrap(chunk, 0, n));
+            }
+        } catch (IOException e) {
+            // peer gone or protocol error; either way the connection ends here
+        } finally {
+            protocol.onClose();
+            try { close(); } catch (IOException ignored) {}
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
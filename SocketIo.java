@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Socket.IO v4 on top of {@link EngineIo}, for the client in {@code public/}. Only the
+ * main namespace exists. {@code join-session} puts a client in the {@link ChatRooms} room
+ * named by the session id, and {@code send-message} goes through the {@link ChatEngine} like a
+ * POST to {@code /send}, so the journal, the history and the room's SSE and WebSocket
+ * subscribers all see Socket.IO messages and the other way round. Every committed message
+ * of the room comes back to its members as {@code new-message}.
+ *
+ * <p>A joining client gets the recent history in {@code session-joined}. Joins and
+ * broadcasts to a room hold the same lock, and live messages it already got through the
+ * history are skipped, so a client sees every message exactly once.
+ */
+final class SocketIo implements EngineIo.Handler {
+    private static final int MAX_USERNAME_LENGTH = 64;
+
+    private final ChatEngine engine;
+    private final int historyLimit;
+    private final Map<EngineIo.Socket, Client> clients = new ConcurrentHashMap<>();
+    // Members per room name; the Members object is also the lock for joining and broadcasting
+    private final Map<String, Members> members = new ConcurrentHashMap<>();
+
+    private static final class Client {
+        final EngineIo.Socket socket;
+        final String id = EngineIo.newId();
+        volatile ChatRooms.Room room;
+        volatile String username;
+        // Highest message id sent in session-joined; guarded by the room's Members
+        long joinedUpTo;
+
+        Client(EngineIo.Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private static final class Members {
+        final Set<Client> clients = new HashSet<>();
+    }
+
+    SocketIo(ChatEngine engine, int historyLimit) {
+        this.engine = engine;
+        this.historyLimit = historyLimit;
+    }
+
+    /** Creates the room for a new chat session and returns its id, or null at the room limit. */
+    String createSession() {
+        String id = EngineIo.newId();
+        return engine.rooms().acquire(id) != null ? id : null;
+    }
+
+    /** Sends every message of a committed batch to the members of its room. */
+    void publish(List<ChatMessage> batch) {
+        int start = 0;
+        while (start < batch.size()) {
+            String room = batch.get(start).room();
+            int end = start + 1;
+            while (end < batch.size() && batch.get(end).room().equals(room)) end++;
+            Members m = members.get(room);
+            if (m != null) {
+                List<ChatMessage> messages = batch.subList(start, end);
+                List<String> packets = new ArrayList<>(messages.size());
+                for (ChatMessage message : messages) packets.add(event("new-message", messageJson(message)));
+                synchronized (m) {
+                    for (Client client : m.clients) {
+                        for (int i = 0; i < packets.size(); i++) {
+                            if (messages.get(i).id() > client.joinedUpTo) client.socket.send(packets.get(i));
+                        }
+                    }
+                }
+            }
+            start = end;
+        }
+    }
+
+    @Override
+    public void onOpen(EngineIo.Socket socket) {
+        // Nothing until the client connects to a namespace
+    }
+
+    @Override
+    public void onMessage(EngineIo.Socket socket, String data) {
+        if (data.isEmpty()) return;
+        int type = data.charAt(0) - '0';
+        int i = 1;
+        String namespace = "/";
+        if (i < data.length() && data.charAt(i) == '/') {
+            int comma = data.indexOf(',', i);
+            namespace = comma < 0 ? data.substring(i) : data.substring(i, comma);
+            i = comma < 0 ? data.length() : comma + 1;
+        }
+        int ackStart = i;
+        while (i < data.length() && i - ackStart < 9 && Character.isDigit(data.charAt(i))) i++;
+        String ack = i > ackStart ? data.substring(ackStart, i) : null;
+        String payload = data.substring(i);
+
+        switch (type) {
+            case 0:
+                if (!"/".equals(namespace)) {
+                    socket.send("4" + namespace + ",{\"message\":\"Invalid namespace\"}");
+                    return;
+                }
+                Client connected = clients.computeIfAbsent(socket, Client::new);
+                socket.send("0{\"sid\":\"" + connected.id + "\"}");
+                break;
+            case 1:
+                Client gone = clients.remove(socket);
+                if (gone != null) leave(gone);
+                break;
+            case 2:
+                Client client = clients.get(socket);
+                if (client == null || !"/".equals(namespace)) return;
+                Object args;
+                try {
+                    args = Json.parse(payload);
+                } catch (IllegalArgumentException e) {
+                    return;
+                }
+                if (!(args instanceof List) || ((List<?>) args).isEmpty()) return;
+                List<?> list = (List<?>) args;
+                Object argument = list.size() > 1 ? list.get(1) : null;
+                if ("join-session".equals(list.get(0))) {
+                    join(client, argument, ack);
+                } else if ("send-message".equals(list.get(0))) {
+                    sendMessage(client, argument, ack);
+                }
+                break;
+            default:
+                // acks from the client and binary packets are not used
+                break;
+        }
+    }
+
+    @Override
+    public void onClose(EngineIo.Socket socket, String reason) {
+        Client client = clients.remove(socket);
+        if (client != null) leave(client);
+    }
+
+    private void join(Client client, Object data, String ack) {
+        Object requested = Json.field(data, "sessionId");
+        String name = requested instanceof String && !((String) requested).isEmpty() ? ChatRooms.nameOf((String) requested) : null;
+        if (name == null) {
+            error(client, "Invalid session");
+            acknowledge(client, ack, false);
+            return;
+        }
+        ChatRooms.Room room = engine.rooms().acquire(name);
+        if (room == null) {
+            error(client, "Too many sessions");
+            acknowledge(client, ack, false);
+            return;
+        }
+        leave(client);
+        Object username = Json.field(data, "username");
+        String display = username instanceof String ? ((String) username).trim() : "";
+        if (display.isEmpty()) display = "User";
+        if (display.length() > MAX_USERNAME_LENGTH) display = display.substring(0, MAX_USERNAME_LENGTH);
+        client.username = display;
+        client.room = room;
+        room.join();
+        members.compute(name, (k, existing) -> {
+            Members m = existing != null ? existing : new Members();
+            synchronized (m) {
+                List<ChatMessage> history = room.history().latest(historyLimit);
+                StringBuilder json = new StringBuilder("{\"sessionId\":").append(Json.quote(name))
+                        .append(",\"userId\":").append(Json.quote(client.id))
+                        .append(",\"username\":").append(Json.quote(client.username))
+                        .append(",\"messages\":[");
+                client.joinedUpTo = 0;
+                for (int i = 0; i < history.size(); i++) {
+                    if (i > 0) json.append(',');
+                    json.append(messageJson(history.get(i)));
+                    client.joinedUpTo = Math.max(client.joinedUpTo, history.get(i).id());
+                }
+                client.socket.send(event("session-joined", json.append("]}").toString()));
+                String joined = event("user-joined", userJson(client));
+                for (Client other : m.clients) other.socket.send(joined);
+                m.clients.add(client);
+            }
+            return m;
+        });
+        acknowledge(client, ack, true);
+    }
+
+    private void leave(Client client) {
+        ChatRooms.Room room = client.room;
+        if (room == null) return;
+        client.room = null;
+        members.computeIfPresent(room.name(), (k, m) -> {
+            synchronized (m) {
+                if (!m.clients.remove(client)) return m;
+                String left = event("user-left", userJson(client));
+                for (Client other : m.clients) other.socket.send(left);
+                return m.clients.isEmpty() ? null : m;
+            }
+        });
+        room.leave();
+    }
+
+    private void sendMessage(Client client, Object data, String ack) {
+        ChatRooms.Room room = client.room;
+        if (room == null) {
+            error(client, "Join a session first");
+            acknowledge(client, ack, false);
+            return;
+        }
+        Object message = Json.field(data, "message");
+        String text = message instanceof String ? ((String) message).trim() : "";
+        if (text.isEmpty()) {
+            acknowledge(client, ack, false);
+            return;
+        }
+        // Never blocks: on NIO this runs on the event loop
+        engine.submit(room, client.id, client.username, null, text)
+                .whenComplete((committed, error) -> acknowledge(client, ack, error == null));
+    }
+
+    private static void error(Client client, String message) {
+        client.socket.send(event("error", "{\"message\":" + Json.quote(message) + "}"));
+    }
+
+    private static void acknowledge(Client client, String ack, boolean ok) {
+        if (ack != null) client.socket.send("3" + ack + "[{\"ok\":" + ok + "}]");
+    }
+
+    private static String event(String name, String json) {
+        return "2[" + Json.quote(name) + "," + json + "]";
+    }
+
+    private static String userJson(Client client) {
+        return "{\"userId\":" + Json.quote(client.id) + ",\"username\":" + Json.quote(client.username) + "}";
+    }
+
+    private static String messageJson(ChatMessage message) {
+        StringBuilder json = new StringBuilder(128)
+                .append("{\"id\":").append(message.id())
+                .append(",\"userId\":").append(Json.quote(message.sender()))
+                .append(",\"username\":").append(Json.quote(message.displayName()))
+                .append(",\"text\":").append(Json.quote(message.text()))
+                .append(",\"timestamp\":").append(message.timestamp());
+        if (message.avatar() != null) json.append(",\"avatar\":").append(Json.quote(message.avatar()));
+        return json.append('}').toString();
+    }
+}
@@ -0,0 +1,341 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Registry of long-lived {@code /events} streams, sharded into {@link Channel}s (one per
+ * room) so a broadcast only visits the subscribers of its channel. Every subscriber owns
+ * a bounded outbound queue that is drained on the writer pool, so a broadcast only
+ * enqueues and a slow phone can never stall the thread that posted the message. A drain
+ * takes the next batch only once the connection has sent the previous one, so a phone that
+ * stops reading backs up into its queue, where the {@link SlowConsumerPolicy} decides what
+ * happens once it is full. Streams with nothing written for a heartbeat interval get a
+ * heartbeat comment (a ping on WebSockets).
+ *
+ * <p>Frames are UTF-8 encoded once per broadcast into a read-only buffer that every queue
+ * shares, and each drain hands the whole backlog to the connection as one gathering write.
+ *
+ * <p>Message frames carry their history id. A new subscriber's replay is read while
+ * broadcasts are held off, and live frames it already got through the replay are skipped,
+ * so a reconnecting browser sees every message exactly once.
+ *
+ * <p>A subscriber may carry its own gzip stream; each drained batch is then compressed
+ * and sync-flushed as one piece, so repeated JSON keys cost almost nothing.
+ *
+ * <p>WebSocket connections subscribe the same way and get the pre-built WebSocket form of
+ * each frame; frames without one (SSE-only) are not sent to them.
+ */
+final class SseHub {
+    enum SlowConsumerPolicy {
+        /** Discard the oldest queued frame to make room. */
+        DROP_OLDEST,
+        /** Merge the backlog into a single frame, disconnecting once it exceeds the byte budget. */
+        COALESCE,
+        /** Close the stream; the browser reconnects on its own. */
+        DISCONNECT
+    }
+
+    private static final ByteBuffer HEARTBEAT = encodeFrame(": ping\n\n");
+    private static final ByteBuffer RETRY = encodeFrame("retry: 3000\n\n");
+
+    /**
+     * An encoded frame and the message id it carries (0 for frames without an id);
+     * {@code ws} is the same frame as a WebSocket message, or null.
+     */
+    record Frame(long id, ByteBuffer bytes, ByteBuffer ws) {
+        Frame(long id, ByteBuffer bytes) {
+            this(id, bytes, null);
+        }
+
+        ByteBuffer encoded(boolean webSocket) {
+            return webSocket ? ws : bytes;
+        }
+    }
+
+    /**
+     * One shard of subscribers. A new subscriber's replay is read under the write lock and
+     * broadcasts take the read lock, which is what makes the replay hand-off exact.
+     */
+    static final class Channel {
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        int size() {
+            return subscribers.size();
+        }
+    }
+
+    // Every subscriber of every channel, for heartbeats and the total count
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final int queueCapacity;
+    private final int maxCoalescedBytes;
+    private final SlowConsumerPolicy policy;
+    private final long heartbeatNanos;
+    private final ExecutorService writers;
+
+    SseHub(int queueCapacity, SlowConsumerPolicy policy, int maxCoalescedBytes, long heartbeatSeconds) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.policy = policy;
+        this.maxCoalescedBytes = maxCoalescedBytes;
+        this.heartbeatNanos = TimeUnit.SECONDS.toNanos(Math.max(0, heartbeatSeconds));
+        AtomicInteger counter = new AtomicInteger();
+        this.writers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "sse-writer-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if (heartbeatSeconds > 0) {
+            ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "sse-heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+            heartbeat.scheduleAtFixedRate(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    static SseHub fromConfig() {
+        SlowConsumerPolicy policy;
+        try {
+            policy = SlowConsumerPolicy.valueOf(ChatConfig.get("sse.policy", "drop_oldest").toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            policy = SlowConsumerPolicy.DROP_OLDEST;
+        }
+        return new SseHub(ChatConfig.getInt("sse.queue", 256), policy,
+                ChatConfig.getInt("sse.coalesce.maxBytes", 1024 * 1024),
+                ChatConfig.getLong("sse.heartbeat.seconds", 15));
+    }
+
+    Subscriber subscribe(Channel channel, HttpConnection connection, Supplier<List<Frame>> replay, boolean gzip) {
+        Subscriber subscriber = new Subscriber(channel, connection, false, gzip ? new HttpCompression.SyncFlushGzip() : null);
+        subscriber.offer(RETRY);
+        return subscribe(subscriber, replay);
+    }
+
+    Subscriber subscribeWebSocket(Channel channel, HttpConnection connection, Supplier<List<Frame>> replay) {
+        return subscribe(new Subscriber(channel, connection, true, null), replay);
+    }
+
+    private Subscriber subscribe(Subscriber subscriber, Supplier<List<Frame>> replay) {
+        Channel channel = subscriber.channel;
+        channel.lock.writeLock().lock();
+        try {
+            List<Frame> frames = replay.get();
+            for (Frame f : frames) subscriber.replayedUpTo = Math.max(subscriber.replayedUpTo, f.id());
+            // The replay goes out as one buffer so it never competes with the queue bound
+            ByteBuffer merged = merge(frames, subscriber.webSocket);
+            if (merged != null) subscriber.offer(merged);
+            channel.subscribers.add(subscriber);
+            subscribers.add(subscriber);
+        } finally {
+            channel.lock.writeLock().unlock();
+        }
+        return subscriber;
+    }
+
+    void broadcastFrame(Channel channel, Frame frame) {
+        channel.lock.readLock().lock();
+        try {
+            for (Subscriber s : channel.subscribers) {
+                ByteBuffer bytes = frame.encoded(s.webSocket);
+                if (bytes != null && (frame.id() == 0 || frame.id() > s.replayedUpTo)) s.offer(bytes);
+            }
+        } finally {
+            channel.lock.readLock().unlock();
+        }
+    }
+
+    /** Broadcasts a batch of frames as one buffer per subscriber of the channel. */
+    void broadcastFrames(Channel channel, List<Frame> frames) {
+        if (frames.isEmpty()) return;
+        if (frames.size() == 1) {
+            broadcastFrame(channel, frames.get(0));
+            return;
+        }
+        long firstId = Long.MAX_VALUE;
+        for (Frame f : frames) firstId = Math.min(firstId, f.id());
+        // Each form is merged at most once, and only if some subscriber needs it
+        ByteBuffer[] shared = new ByteBuffer[2];
+        boolean[] merged = new boolean[2];
+        channel.lock.readLock().lock();
+        try {
+            for (Subscriber s : channel.subscribers) {
+                if (s.replayedUpTo < firstId) {
+                    int form = s.webSocket ? 1 : 0;
+                    if (!merged[form]) {
+                        shared[form] = merge(frames, s.webSocket);
+                        merged[form] = true;
+                    }
+                    if (shared[form] != null) s.offer(shared[form]);
+                    continue;
+                }
+                // Rare: the batch overlaps this subscriber's replay, so send only what it lacks
+                for (Frame f : frames) {
+                    ByteBuffer bytes = f.encoded(s.webSocket);
+                    if (bytes != null && f.id() > s.replayedUpTo) s.offer(bytes);
+                }
+            }
+        } finally {
+            channel.lock.readLock().unlock();
+        }
+    }
+
+    // The given form of every frame in one read-only buffer, or null if there is nothing to send
+    private static ByteBuffer merge(List<Frame> frames, boolean webSocket) {
+        int total = 0;
+        for (Frame f : frames) {
+            ByteBuffer bytes = f.encoded(webSocket);
+            if (bytes != null) total += bytes.remaining();
+        }
+        if (total == 0) return null;
+        ByteBuffer merged = ByteBuffer.allocate(total);
+        for (Frame f : frames) {
+            ByteBuffer bytes = f.encoded(webSocket);
+            if (bytes != null) merged.put(bytes.duplicate());
+        }
+        merged.flip();
+        return merged.asReadOnlyBuffer();
+    }
+
+    static ByteBuffer encodeFrame(String frame) {
+        return ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    int size() {
+        return subscribers.size();
+    }
+
+    private void heartbeat() {
+        long idleSince = System.nanoTime() - heartbeatNanos;
+        for (Subscriber s : subscribers) {
+            if (s.isIdleSince(idleSince)) s.offer(s.webSocket ? WebSocket.PING : HEARTBEAT);
+        }
+    }
+
+    final class Subscriber {
+        private final Channel channel;
+        private final HttpConnection connection;
+        private final boolean webSocket;
+        private final HttpCompression.SyncFlushGzip gzip;
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private boolean draining;
+        private volatile long lastWrite = System.nanoTime();
+        private volatile long replayedUpTo;
+        private volatile boolean closed;
+
+        private Subscriber(Channel channel, HttpConnection connection, boolean webSocket, HttpCompression.SyncFlushGzip gzip) {
+            this.channel = channel;
+            this.connection = connection;
+            this.webSocket = webSocket;
+            this.gzip = gzip;
+        }
+
+        void offer(ByteBuffer frame) {
+            if (closed) return;
+            boolean schedule;
+            synchronized (queue) {
+                if (queue.size() >= queueCapacity && !makeRoom()) {
+                    schedule = false;
+                } else {
+                    queue.add(frame.duplicate());
+                    schedule = !draining;
+                    draining = true;
+                }
+            }
+            if (closed) {
+                close();
+            } else if (schedule) {
+                scheduleDrain();
+            }
+        }
+
+        private void scheduleDrain() {
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        // Called with the queue lock held; returns false if the subscriber was dropped
+        private boolean makeRoom() {
+            switch (policy) {
+                case DROP_OLDEST:
+                    queue.poll();
+                    return true;
+                case COALESCE:
+                    int total = 0;
+                    for (ByteBuffer f : queue) total += f.remaining();
+                    if (total > maxCoalescedBytes) break;
+                    ByteBuffer merged = ByteBuffer.allocate(total);
+                    for (ByteBuffer f : queue) merged.put(f);
+                    merged.flip();
+                    queue.clear();
+                    queue.add(merged);
+                    return true;
+                default:
+                    break;
+            }
+            closed = true;
+            return false;
+        }
+
+        // Nothing queued or in flight, and nothing written since the cutoff
+        boolean isIdleSince(long cutoff) {
+            synchronized (queue) {
+                return !draining && lastWrite - cutoff <= 0;
+            }
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    ByteBuffer[] batch;
+                    synchronized (queue) {
+                        if (queue.isEmpty()) {
+                            draining = false;
+                            return;
+                        }
+                        batch = queue.toArray(new ByteBuffer[0]);
+                        queue.clear();
+                    }
+                    if (gzip != null) batch = new ByteBuffer[] {gzip.compress(batch)};
+                    connection.write(batch);
+                    lastWrite = System.nanoTime();
+                    // Still draining: later frames wait in the queue until the socket took this batch
+                    if (!connection.whenWritten(this::scheduleDrain)) return;
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            channel.subscribers.remove(this);
+            subscribers.remove(this);
+            synchronized (queue) {
+                queue.clear();
+            }
+            if (gzip != null) gzip.close();
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
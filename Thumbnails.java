@@ -0,0 +1,217 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Downscaled JPEG variants of the images in an asset directory, one per configured width.
+ * A variant is generated on first request (or by the startup warmer), written to the
+ * thumbnail directory and from then on served through its own {@link AssetCache}, so it
+ * gets the same in-memory copy, ETag and 304 handling as an original. Variants are
+ * dropped when the source file changes.
+ */
+final class Thumbnails {
+    private final AssetCache sources;
+    private final Path sourceRoot;
+    private final Path root;
+    private final int[] widths;
+    private final float quality;
+    private final AssetCache cache;
+    // "name@width" -> variant file name, or "" when the original is already small enough
+    private final Map<String, String> variants = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    Thumbnails(AssetCache sources, Path sourceRoot, Path root, int[] widths, float quality) throws IOException {
+        this.sources = sources;
+        this.sourceRoot = sourceRoot.toAbsolutePath().normalize();
+        this.root = root.toAbsolutePath().normalize();
+        this.widths = widths.clone();
+        Arrays.sort(this.widths);
+        this.quality = quality;
+        Files.createDirectories(this.root);
+        this.cache = new AssetCache(this.root, ChatConfig.getLong("thumbs.cache.maxBytes", 8L * 1024 * 1024), Long.MAX_VALUE, false);
+        sources.addListener(this::invalidate);
+    }
+
+    /** Returns null (thumbnails disabled) if the directory cannot be created. */
+    static Thumbnails fromConfig(AssetCache sources, String sourceDir) {
+        int[] widths;
+        try {
+            widths = Arrays.stream(ChatConfig.get("thumbs.widths", "32,64,128").split(","))
+                    .map(String::trim).filter(w -> !w.isEmpty()).mapToInt(Integer::parseInt).filter(w -> w > 0).toArray();
+        } catch (NumberFormatException e) {
+            widths = new int[] {32, 64, 128};
+        }
+        if (widths.length == 0) return null;
+        try {
+            Thumbnails thumbnails = new Thumbnails(sources, Paths.get(sourceDir), Paths.get(ChatConfig.get("thumbs.dir", "thumbnails")),
+                    widths, ChatConfig.getInt("thumbs.quality", 80) / 100f);
+            if (ChatConfig.getBoolean("thumbs.pregenerate", true)) thumbnails.warmInBackground();
+            return thumbnails;
+        } catch (IOException e) {
+            System.err.println("Thumbnails disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Serves the variant of {@code name} closest to {@code requestedWidth}. Returns false
+     * when there is none (not an image, or already that small) and the original should be sent.
+     */
+    boolean serve(HttpConnection connection, HttpRequest request, String name, String requestedWidth) throws IOException {
+        int width;
+        try {
+            width = snap(Integer.parseInt(requestedWidth));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        String variant = variant(name, width);
+        return variant != null && cache.serve(connection, request, variant);
+    }
+
+    // Smallest configured width that is at least the requested one, else the largest
+    private int snap(int requested) {
+        for (int w : widths) {
+            if (w >= requested) return w;
+        }
+        return widths[widths.length - 1];
+    }
+
+    private String variant(String name, int width) throws IOException {
+        if (!isImage(name)) return null;
+        AssetCache.Asset source = sources.lookup(name);
+        if (source == null) return null;
+        // Keyed like the source cache, by the normalized relative path the watcher reports
+        String key = sourceRoot.relativize(source.path()).toString() + "@" + width;
+        String variant = variants.get(key);
+        if (variant != null) return variant.isEmpty() ? null : variant;
+
+        // One generator per variant; concurrent requests for it wait instead of duplicating the work
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            variant = variants.get(key);
+            if (variant == null) {
+                variant = generate(source.path(), width);
+                variants.put(key, variant);
+            }
+        }
+        return variant.isEmpty() ? null : variant;
+    }
+
+    // Writes (or reuses an up-to-date) variant file and returns its name, or "" if none is needed
+    private String generate(Path source, int width) throws IOException {
+        String relative = sourceRoot.relativize(source).toString();
+        int dot = relative.lastIndexOf('.');
+        String name = (dot < 0 ? relative : relative.substring(0, dot)).replace('/', '_').replace('\\', '_') + "-w" + width + ".jpg";
+        Path target = root.resolve(name);
+        if (Files.isRegularFile(target) && Files.getLastModifiedTime(target).compareTo(Files.getLastModifiedTime(source)) >= 0) {
+            return name;
+        }
+        BufferedImage image = ImageIO.read(source.toFile());
+        if (image == null || image.getWidth() <= width) return "";
+        BufferedImage scaled = scale(image, width, Math.max(1, Math.round(image.getHeight() * (width / (float) image.getWidth()))));
+
+        // Write then rename, so a reader never sees a half-written file
+        Path tmp = Files.createTempFile(root, name, ".tmp");
+        try {
+            writeJpeg(scaled, tmp);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        cache.invalidate(name);
+        return name;
+    }
+
+    // Halves the image until close to the target before the final bilinear pass, which
+    // keeps detail that a single large bilinear step would alias away
+    private static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage current = toRgb(image);
+        int w = current.getWidth();
+        int h = current.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+            BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = next;
+        } while (w != width || h != height);
+        return current;
+    }
+
+    // JPEG has no alpha; flatten onto white so transparent sources do not turn black
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) return image;
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, image.getWidth(), image.getHeight());
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    private void writeJpeg(BufferedImage image, Path target) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) throw new IOException("No JPEG encoder available");
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(target.toFile())) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void invalidate(String sourceName) {
+        variants.keySet().removeIf(key -> key.startsWith(sourceName + "@"));
+    }
+
+    private void warmInBackground() {
+        Thread thread = new Thread(() -> {
+            try (Stream<Path> files = Files.list(sourceRoot)) {
+                files.map(p -> p.getFileName().toString()).filter(Thumbnails::isImage).sorted().forEach(name -> {
+                    for (int w : widths) {
+                        try {
+                            variant(name, w);
+                        } catch (IOException | RuntimeException e) {
+                            System.err.println("Thumbnail for " + name + " failed: " + e.getMessage());
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Thumbnail warm-up failed: " + e.getMessage());
+            }
+        }, "thumbnail-warmer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static boolean isImage(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".jpg") || lower.endsWith(".jpeg") || lower.endsWith(".png") || lower.endsWith(".gif");
+    }
+}
@@ -0,0 +1,109 @@
+import javax.swing.Timer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands UI work from network threads to the EDT. Producers only touch lock-free structures;
+ * a Swing timer drains them at most once per frame, so a burst of arrivals costs one EDT
+ * pass instead of one runnable each. {@link #coalesce} keeps only the latest update per key
+ * (counters, status text), and {@link #alert} folds sounds and notifications into at most
+ * one per {@code alertIntervalMillis}. The timer runs only while there is work.
+ */
+final class UiBus {
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<Object, Runnable> latest = new ConcurrentHashMap<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final AtomicBoolean alertPending = new AtomicBoolean();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final Runnable onAlert;
+    private final long alertIntervalNanos;
+    private final Timer timer;
+    private long lastAlert;
+
+    UiBus(int framesPerSecond, long alertIntervalMillis, Runnable onAlert) {
+        this.onAlert = onAlert;
+        this.alertIntervalNanos = Math.max(0, alertIntervalMillis) * 1_000_000L;
+        this.lastAlert = System.nanoTime() - alertIntervalNanos;
+        this.timer = new Timer(1000 / Math.max(1, Math.min(framesPerSecond, 1000)), e -> drain());
+        timer.setCoalesce(true);
+    }
+
+    static UiBus fromConfig(Runnable onAlert) {
+        return new UiBus(ChatConfig.getInt("desktop.ui.fps", 60),
+                ChatConfig.getLong("desktop.alert.interval.millis", 1000), onAlert);
+    }
+
+    /** Runs {@code task} on the EDT in the next frame. */
+    void post(Runnable task) {
+        tasks.add(task);
+        added();
+    }
+
+    /** Runs {@code task} in the next frame unless a later update for {@code key} replaces it. */
+    void coalesce(Object key, Runnable task) {
+        if (latest.put(key, task) == null) added();
+    }
+
+    /** Requests a sound or notification; repeated requests within the interval merge into one. */
+    void alert() {
+        if (alertPending.compareAndSet(false, true)) added();
+    }
+
+    /** Updates waiting for the EDT. */
+    int depth() {
+        return depth.get();
+    }
+
+    /** The largest {@link #depth} seen so far. */
+    int peakDepth() {
+        return peakDepth.get();
+    }
+
+    private void added() {
+        peakDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+        if (running.compareAndSet(false, true)) timer.start();
+    }
+
+    private void drain() {
+        // Only what is queued now; work posted by these tasks waits for the next frame
+        for (int n = tasks.size(); n > 0; n--) {
+            Runnable task = tasks.poll();
+            if (task == null) break;
+            depth.decrementAndGet();
+            run(task);
+        }
+        for (Object key : latest.keySet()) {
+            Runnable task = latest.remove(key);
+            if (task == null) continue;
+            depth.decrementAndGet();
+            run(task);
+        }
+        if (alertPending.get()) {
+            long now = System.nanoTime();
+            if (now - lastAlert >= alertIntervalNanos && alertPending.compareAndSet(true, false)) {
+                depth.decrementAndGet();
+                lastAlert = now;
+                run(onAlert);
+            }
+        }
+        if (depth.get() == 0) {
+            timer.stop();
+            running.set(false);
+            // A producer that saw running == true just before it was cleared
+            if (depth.get() > 0 && running.compareAndSet(false, true)) timer.start();
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
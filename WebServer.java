@@ -1,34 +1,22 @@
-import java.io.*;
-import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 
 public class WebServer {
     private static final int WEB_PORT = 3000;
-    private static final List<PrintWriter> sseClients = new CopyOnWriteArrayList<>();
-    private static final List<String> messageHistory = new CopyOnWriteArrayList<>();
-    private static final Map<String, String> userProfiles = new HashMap<>();
-    private static ServerSocket httpServerSocket;
     private static String NETWORK_IP;
-    
-    // Settings
-    private static boolean darkMode = true;
-    private static boolean soundEnabled = true;
-    private static boolean notificationsEnabled = true;
-    private static String fontSize = "medium";
 
     public static void main(String[] args) {
         System.out.println("Starting AlphaChat Web Server...");
         
+        String networkIp;
         try {
-            NETWORK_IP = getNetworkIP();
+            networkIp = getNetworkIP();
         } catch (Exception e) {
-            NETWORK_IP = "localhost";
+            networkIp = "localhost";
         }
         
-        String url = "http://" + NETWORK_IP + ":" + WEB_PORT + "/";
+        String url = "http://" + networkIp + ":" + WEB_PORT + "/";
         System.out.println("PHONE CONNECTION OPTIONS:");
         System.out.println("1. Direct URL: " + url);
         System.out.println("2. Connection Helper: " + url + "connect");
@@ -36,7 +24,14 @@ public class WebServer {
         System.out.println("4. Settings: " + url + "settings");
         System.out.println("Messages will appear here when sent from phone");
         
-        startHttpServer();
+        ChatEngine engine = new ChatEngine("WebServer");
+        engine.subscribe(ChatEngine::log);
+        try {
+            engine.start(httpServer(engine, networkIp));
+            System.out.println("Web server running on port " + WEB_PORT);
+        } catch (IOException e) {
+            System.err.println("HTTP server error: " + e.getMessage());
+        }
         
         try {
             Thread.currentThread().join();
@@ -45,173 +40,37 @@ public class WebServer {
         }
     }
 
-    private static void addMessage(String sender, String text) {
-        String time = new SimpleDateFormat("HH:mm").format(new Date());
-        String message = "[" + time + "] " + sender + ": " + text;
-        messageHistory.add(message);
-        System.out.println(message);
-    }
-
-    private static void startHttpServer() {
-        Thread serverThread = new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(WEB_PORT)) {
-                httpServerSocket = serverSocket;
-                System.out.println("Web server running on port " + WEB_PORT);
-                
-                while (true) {
-                    Socket client = serverSocket.accept();
-                    new Thread(() -> handleHttpConnection(client), "http-" + client.getPort()).start();
-                }
-            } catch (IOException e) {
-                System.err.println("HTTP server error: " + e.getMessage());
-            }
-        }, "http-server");
-        serverThread.setDaemon(true);
-        serverThread.start();
-    }
-
-    private static void handleHttpConnection(Socket socket) {
-        try (BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
-             OutputStream rawOut = socket.getOutputStream();
-             PrintWriter out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true)) {
-
-            List<String> headers = new ArrayList<>();
-            String requestLine = readLine(in);
-            if (requestLine == null || requestLine.isEmpty()) return;
-            String line;
-            int contentLength = 0;
-            while ((line = readLine(in)) != null && !line.isEmpty()) {
-                headers.add(line);
-                String lower = line.toLowerCase(Locale.ROOT);
-                if (lower.startsWith("content-length:")) {
-                    try { contentLength = Integer.parseInt(lower.split(":", 2)[1].trim()); } catch (Exception ignored) {}
-                }
-            }
-
-            String method = requestLine.split(" ")[0];
-            String path = requestLine.split(" ")[1];
-
-            if ("GET".equals(method) && "/".equals(path)) {
-                serveIndex(out);
-            } else if ("GET".equals(method) && "/events".equals(path)) {
-                handleSse(rawOut, out);
-            } else if ("POST".equals(method) && "/send".equals(path)) {
-                byte[] body = readBody(in, contentLength);
-                String form = new String(body, StandardCharsets.UTF_8);
-                String text = parseFormField(form, "text");
-                if (text == null) text = "";
-                String decoded = urlDecode(text);
-                if (!decoded.isEmpty()) {
-                    addMessage("Phone", decoded);
-                    broadcastEvent("phone", decoded);
-                }
-                writeNoContent(out);
-            } else if ("POST".equals(method) && "/profile".equals(path)) {
-                byte[] body = readBody(in, contentLength);
-                String form = new String(body, StandardCharsets.UTF_8);
-                String avatar = parseFormField(form, "avatar");
-                String sessionId = parseFormField(form, "sessionId");
-                if (avatar != null && sessionId != null) {
-                    userProfiles.put(sessionId, avatar);
-                    writeText(out, 200, "OK", "application/json", "{\"success\":true}");
-                } else {
-                    writeText(out, 400, "Bad Request", "application/json", "{\"success\":false}");
-                }
-            } else if ("POST".equals(method) && "/settings".equals(path)) {
-                byte[] body = readBody(in, contentLength);
-                String form = new String(body, StandardCharsets.UTF_8);
-                String setting = parseFormField(form, "setting");
-                String value = parseFormField(form, "value");
-                if (setting != null && value != null) {
-                    updateSetting(setting, value);
-                    writeText(out, 200, "OK", "application/json", "{\"success\":true}");
-                } else {
-                    writeText(out, 400, "Bad Request", "application/json", "{\"success\":false}");
-                }
-            } else if ("GET".equals(method) && "/health".equals(path)) {
-                writeText(out, 200, "OK", "text/plain", "ok");
-            } else if ("GET".equals(method) && "/connect".equals(path)) {
-                serveConnectionHelper(out);
-            } else if ("GET".equals(method) && "/profile".equals(path)) {
-                serveProfilePage(out);
-            } else if ("GET".equals(method) && "/settings".equals(path)) {
-                serveSettingsPage(out);
-            } else if (path.startsWith("/assets/")) {
-                serveAsset(path, rawOut);
-            } else {
-                writeText(out, 404, "Not Found", "text/plain", "Not Found");
-            }
-        } catch (IOException ignored) {
-        } finally {
-            try { socket.close(); } catch (IOException ignored) {}
-        }
-    }
-
-    private static void updateSetting(String setting, String value) {
-        switch (setting) {
-            case "darkMode":
-                darkMode = "true".equals(value);
-                break;
-            case "soundEnabled":
-                soundEnabled = "true".equals(value);
-                break;
-            case "notificationsEnabled":
-                notificationsEnabled = "true".equals(value);
-                break;
-            case "fontSize":
-                fontSize = value;
-                break;
-        }
+    /** The HTTP transport serving these pages for {@code engine}; the desktop app embeds it too. */
+    static ChatHttpServer httpServer(ChatEngine engine, String networkIp) {
+        NETWORK_IP = networkIp;
+        ChatHttpServer http = new ChatHttpServer(engine, WEB_PORT, networkIp);
+        http.page("/", WebServer::renderIndex);
+        http.page("/profile", WebServer::renderProfilePage);
+        http.page("/settings", WebServer::renderSettingsPage);
+        http.page("/connect", WebServer::renderConnectionHelper);
+        return http;
     }
 
-    private static void serveAsset(String path, OutputStream rawOut) throws IOException {
-        String fileName = path.substring("/assets/".length());
-        File assetFile = new File("assets/" + fileName);
-        
-        if (assetFile.exists() && assetFile.isFile()) {
-            String contentType = fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") ? "image/jpeg" : "application/octet-stream";
-            
-            PrintWriter headerOut = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
-            headerOut.print("HTTP/1.1 200 OK\r\n");
-            headerOut.print("Content-Type: " + contentType + "\r\n");
-            headerOut.print("Content-Length: " + assetFile.length() + "\r\n");
-            headerOut.print("Cache-Control: public, max-age=3600\r\n\r\n");
-            headerOut.flush();
-            
-            try (FileInputStream fis = new FileInputStream(assetFile)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    rawOut.write(buffer, 0, bytesRead);
-                }
-                rawOut.flush();
-            }
-        } else {
-            PrintWriter headerOut = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
-            writeText(headerOut, 404, "Not Found", "text/plain", "Asset not found");
-        }
-    }
-
-    private static void serveProfilePage(PrintWriter out) {
+    private static String renderProfilePage() {
         String html = getModernProfilePage();
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
-    private static void serveSettingsPage(PrintWriter out) {
+    private static String renderSettingsPage() {
         String html = getModernSettingsPage();
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
-    private static void serveConnectionHelper(PrintWriter out) {
+    private static String renderConnectionHelper() {
         String url = "http://" + NETWORK_IP + ":" + WEB_PORT + "/";
         String html = getModernConnectionPage(url);
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
-    private static void serveIndex(PrintWriter out) {
+    private static String renderIndex() {
         String url = "http://" + NETWORK_IP + ":" + WEB_PORT + "/";
         String html = getModernIndexPage(url);
-        writeText(out, 200, "OK", "text/html; charset=utf-8", html);
+        return html;
     }
 
     private static String getModernIndexPage(String url) {
@@ -327,7 +186,10 @@ public class WebServer {
     private static String getModernJavaScript() {
         return "const log=document.getElementById('log');" +
                 "let userAvatar=null;" +
-                "let sessionId='session_'+Date.now();" +
+                "const room=new URLSearchParams(location.search).get('room');" +
+                "const roomQuery=room?'?room='+encodeURIComponent(room):'';" +
+                "let sessionId=localStorage.getItem('sessionId')||('session_'+Date.now());" +
+                "localStorage.setItem('sessionId',sessionId);" +
                 "function add(sender,text,avatar=null){" +
                 "const row=document.createElement('div');" +
                 "row.className='msg '+(sender==='desktop'?'you':'me');" +
@@ -338,7 +200,7 @@ public class WebServer {
                 "meta.className='meta';" +
                 "if(avatar){" +
                 "const avatarImg=document.createElement('img');" +
-                "avatarImg.src='/assets/'+avatar+'.jpg';" +
+                "avatarImg.src='/assets/'+avatar+'.jpg?w=64';" +
                 "avatarImg.className='avatar';" +
                 "meta.appendChild(avatarImg);" +
                 "}" +
@@ -354,30 +216,54 @@ public class WebServer {
                 "log.appendChild(row);" +
                 "window.scrollTo(0,document.body.scrollHeight);" +
                 "}" +
-                "const ev=new EventSource('/events');" +
-                "ev.onmessage=e=>{" +
-                "try{" +
-                "const m=JSON.parse(e.data);" +
+                "let ws=null;" +
+                "let lastId=0;" +
+                "function received(m,id){" +
+                "if(id)lastId=id;" +
                 "if(m.sender!=='system'){" +
                 "add(m.sender,m.text,m.avatar);" +
                 "}" +
+                "}" +
+                "function listenEvents(){" +
+                "const ev=new EventSource('/events'+roomQuery);" +
+                "ev.onmessage=e=>{" +
+                "try{received(JSON.parse(e.data));}catch(_){}" +
+                "};" +
+                "}" +
+                "function connect(){" +
+                "const socket=new WebSocket((location.protocol==='https:'?'wss://':'ws://')+location.host+'/ws'" +
+                "+(roomQuery?roomQuery+'&':'?')+'sessionId='+encodeURIComponent(sessionId)" +
+                "+(lastId?'&lastEventId='+lastId:''));" +
+                "let opened=false;" +
+                "socket.onopen=()=>{opened=true;ws=socket;};" +
+                "socket.onmessage=e=>{" +
+                "try{" +
+                "const f=JSON.parse(e.data);" +
+                "if(f.event==='message')received(f.data,f.id);" +
                 "}catch(_){}" +
                 "};" +
+                "socket.onclose=()=>{" +
+                "ws=null;" +
+                "if(opened)setTimeout(connect,3000);else listenEvents();" +
+                "};" +
+                "}" +
+                "if(window.WebSocket)connect();else listenEvents();" +
                 "const input=document.getElementById('text');" +
                 "const btn=document.getElementById('send');" +
                 "function send(){" +
                 "const t=input.value.trim();" +
                 "if(!t)return;" +
+                "if(ws&&ws.readyState===WebSocket.OPEN){" +
+                "ws.send(t);" +
+                "}else{" +
                 "const formData=new FormData();" +
                 "formData.append('text',t);" +
-                "if(userAvatar){" +
-                "formData.append('avatar',userAvatar);" +
-                "}" +
-                "fetch('/send',{" +
+                "formData.append('sessionId',sessionId);" +
+                "fetch('/send'+roomQuery,{" +
                 "method:'POST'," +
-                "body:formData" +
+                "body:new URLSearchParams(formData)" +
                 "});" +
-                "add('phone',t,userAvatar);" +
+                "}" +
                 "input.value='';" +
                 "}" +
                 "function startChat(){" +
@@ -409,6 +295,7 @@ public class WebServer {
                 "const savedAvatar=localStorage.getItem('userAvatar');" +
                 "if(savedAvatar){" +
                 "userAvatar=savedAvatar;" +
+                "fetch('/profile',{method:'POST',body:new URLSearchParams({avatar:userAvatar,sessionId:sessionId})});" +
                 "}" +
                 "};";
     }
@@ -498,128 +385,6 @@ public class WebServer {
                 "</body></html>";
     }
 
-    private static void handleSse(OutputStream rawOut, PrintWriter headerOut) {
-        headerOut.print("HTTP/1.1 200 OK\r\n");
-        headerOut.print("Content-Type: text/event-stream\r\n");
-        headerOut.print("Cache-Control: no-cache\r\n");
-        headerOut.print("Connection: keep-alive\r\n\r\n");
-        headerOut.flush();
-
-        PrintWriter eventWriter = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
-        sseClients.add(eventWriter);
-    }
-
-    private static void broadcastEvent(String sender, String text) {
-        String json = "{\"sender\":\"" + escapeJson(sender) + "\",\"text\":\"" + escapeJson(text) + "\"}";
-        List<PrintWriter> toRemove = new ArrayList<>();
-        for (PrintWriter w : sseClients) {
-            if (!sendSse(w, json)) {
-                toRemove.add(w);
-            }
-        }
-        sseClients.removeAll(toRemove);
-    }
-
-    private static boolean sendSse(PrintWriter w, String data) {
-        try {
-            w.print("data: ");
-            w.print(data);
-            w.print("\n\n");
-            w.flush();
-            return !w.checkError();
-        } catch (Exception e) {
-            return false;
-        }
-    }
-
-    private static void writeNoContent(PrintWriter out) {
-        out.print("HTTP/1.1 204 No Content\r\n");
-        out.print("Date: " + httpDate() + "\r\n");
-        out.print("Content-Length: 0\r\n\r\n");
-        out.flush();
-    }
-
-    private static void writeText(PrintWriter out, int code, String reason, String contentType, String body) {
-        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
-        out.print("HTTP/1.1 " + code + " " + reason + "\r\n");
-        out.print("Date: " + httpDate() + "\r\n");
-        out.print("Content-Type: " + contentType + "\r\n");
-        out.print("Content-Length: " + bytes.length + "\r\n\r\n");
-        out.flush();
-        try {
-            out.write(body);
-            out.flush();
-        } catch (Exception ignored) {}
-    }
-
-    private static String httpDate() {
-        SimpleDateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-        fmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-        return fmt.format(new Date());
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        int prev = -1;
-        while (true) {
-            int b = in.read();
-            if (b == -1) break;
-            if (prev == '\r' && b == '\n') break;
-            if (b != '\r') buf.write(b);
-            prev = b;
-        }
-        return buf.toString(StandardCharsets.UTF_8);
-    }
-
-    private static byte[] readBody(InputStream in, int length) throws IOException {
-        byte[] body = new byte[length];
-        int read = 0;
-        while (read < length) {
-            int r = in.read(body, read, length - read);
-            if (r == -1) break;
-            read += r;
-        }
-        return body;
-    }
-
-    private static String parseFormField(String form, String key) {
-        String[] parts = form.split("&");
-        for (String p : parts) {
-            int idx = p.indexOf('=');
-            if (idx > 0) {
-                String k = p.substring(0, idx);
-                String v = p.substring(idx + 1);
-                if (k.equals(key)) return v;
-            }
-        }
-        return null;
-    }
-
-    private static String urlDecode(String s) {
-        try { return java.net.URLDecoder.decode(s, StandardCharsets.UTF_8.name()); } catch (Exception e) { return s; }
-    }
-
-    private static String escapeJson(String s) {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            switch (c) {
-                case '"': sb.append("\\\""); break;
-                case '\\': sb.append("\\\\"); break;
-                case '\n': sb.append("\\n"); break;
-                case '\r': sb.append("\\r"); break;
-                case '\t': sb.append("\\t"); break;
-                default:
-                    if (c < 0x20) {
-                        sb.append(String.format("\\u%04x", (int)c));
-                    } else {
-                        sb.append(c);
-                    }
-            }
-        }
-        return sb.toString();
-    }
-
     private static String getNetworkIP() throws Exception {
         try (Socket socket = new Socket()) {
             socket.connect(new InetSocketAddress("8.8.8.8", 80));
@@ -0,0 +1,242 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Server side of one RFC 6455 connection. Frames are parsed incrementally from whatever
+ * the engine reads: client frames must be masked, fragmented text messages are
+ * reassembled up to {@code ws.max.message.bytes}, pings are answered and a close is
+ * echoed before the connection goes away. Outgoing frames are built by the static
+ * helpers, so a broadcast can encode a frame once and share it between connections.
+ */
+final class WebSocket implements HttpConnection.Protocol {
+    static final int MAX_MESSAGE_BYTES = ChatConfig.getInt("ws.max.message.bytes", 64 * 1024);
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int OP_CONTINUATION = 0x0;
+    private static final int OP_TEXT = 0x1;
+    private static final int OP_BINARY = 0x2;
+    private static final int OP_CLOSE = 0x8;
+    private static final int OP_PING = 0x9;
+    private static final int OP_PONG = 0xA;
+
+    static final ByteBuffer PING = frame(OP_PING, new byte[0]);
+
+    /** What the application sees of a connection. */
+    interface Listener {
+        void onText(WebSocket socket, String text);
+
+        void onClose(WebSocket socket);
+    }
+
+    private final HttpConnection connection;
+    private final Listener listener;
+    // Unparsed input; grows only up to one frame header plus the message limit
+    private ByteBuffer input = ByteBuffer.allocate(1024);
+    private final ByteArrayOutputStream message = new ByteArrayOutputStream();
+    private int messageOpcode = -1;
+    private boolean closeSent;
+    private boolean closed;
+
+    WebSocket(HttpConnection connection, Listener listener) {
+        this.connection = connection;
+        this.listener = listener;
+    }
+
+    /** True for a well-formed version 13 upgrade request. */
+    static boolean isUpgrade(HttpRequest request) {
+        String upgrade = request.header("upgrade");
+        String connection = request.header("connection");
+        return "GET".equals(request.method())
+                && upgrade != null && upgrade.trim().equalsIgnoreCase("websocket")
+                && connection != null && connection.toLowerCase(Locale.ROOT).contains("upgrade")
+                && "13".equals(trim(request.header("sec-websocket-version")))
+                && request.header("sec-websocket-key") != null;
+    }
+
+    /** The 101 response accepting {@code request}. */
+    static ByteBuffer handshake(HttpRequest request) {
+        String accept;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((request.header("sec-websocket-key").trim() + ACCEPT_GUID).getBytes(StandardCharsets.US_ASCII));
+            accept = Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** An unmasked text frame, read-only so it can be shared between connections. */
+    static ByteBuffer textFrame(String text) {
+        return frame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer frame(int opcode, byte[] payload) {
+        int headerBytes = payload.length < 126 ? 2 : payload.length <= 0xFFFF ? 4 : 10;
+        ByteBuffer frame = ByteBuffer.allocate(headerBytes + payload.length);
+        frame.put((byte) (0x80 | opcode));
+        if (payload.length < 126) {
+            frame.put((byte) payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            frame.put((byte) 126).putShort((short) payload.length);
+        } else {
+            frame.put((byte) 127).putLong(payload.length);
+        }
+        frame.put(payload).flip();
+        return frame.asReadOnlyBuffer();
+    }
+
+    void sendText(String text) throws IOException {
+        connection.write(textFrame(text));
+    }
+
+    /** Starts the closing handshake; the connection ends when the peer answers or leaves. */
+    void close(int code, String reason) {
+        if (closeSent) return;
+        closeSent = true;
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + text.length).putShort((short) code).put(text);
+        try {
+            connection.write(frame(OP_CLOSE, payload.array()));
+        } catch (IOException ignored) {
+        }
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void onData(ByteBuffer data) throws IOException {
+        if (closed) return;
+        if (input.remaining() < data.remaining()) {
+            input.flip();
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.remaining() + data.remaining()));
+            input = bigger.put(input);
+        }
+        input.put(data);
+        input.flip();
+        try {
+            while (!closeSent && parseFrame()) {
+                // keep going while whole frames are buffered
+            }
+        } finally {
+            input.compact();
+        }
+    }
+
+    @Override
+    public void onClose() {
+        if (closed) return;
+        closed = true;
+        listener.onClose(this);
+    }
+
+    // Handles one complete frame from the input (in read mode); false if it has not fully arrived
+    private boolean parseFrame() throws IOException {
+        if (input.remaining() < 2) return false;
+        int start = input.position();
+        int b0 = input.get(start) & 0xFF;
+        int b1 = input.get(start + 1) & 0xFF;
+        boolean fin = (b0 & 0x80) != 0;
+        int opcode = b0 & 0x0F;
+        boolean masked = (b1 & 0x80) != 0;
+        long length = b1 & 0x7F;
+        int header = 2;
+        if (length == 126) {
+            if (input.remaining() < 4) return false;
+            length = input.getShort(start + 2) & 0xFFFF;
+            header = 4;
+        } else if (length == 127) {
+            if (input.remaining() < 10) return false;
+            length = input.getLong(start + 2);
+            header = 10;
+        }
+        if ((b0 & 0x70) != 0) return protocolError(1002, "Reserved bits set");
+        if (!masked) return protocolError(1002, "Client frames must be masked");
+        boolean control = (opcode & 0x08) != 0;
+        if (control && (!fin || length > 125)) return protocolError(1002, "Invalid control frame");
+        // Control frames may come between fragments but are not part of the message
+        if (!control && (length < 0 || length + message.size() > MAX_MESSAGE_BYTES)) return protocolError(1009, "Message too big");
+        if (input.remaining() < header + 4 + length) return false;
+
+        byte[] mask = new byte[4];
+        input.position(start + header);
+        input.get(mask);
+        byte[] payload = new byte[(int) length];
+        input.get(payload);
+        for (int i = 0; i < payload.length; i++) payload[i] ^= mask[i & 3];
+
+        switch (opcode) {
+            case OP_PING:
+                connection.write(frame(OP_PONG, payload));
+                return true;
+            case OP_PONG:
+                return true;
+            case OP_CLOSE:
+                // Echo the status code (if any), then let the connection go
+                if (payload.length == 0) {
+                    close(1000, "");
+                    return false;
+                }
+                int code = payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : -1;
+                if (!isValidCloseCode(code)) return protocolError(1002, "Invalid close code");
+                close(code, "");
+                return false;
+            case OP_TEXT:
+            case OP_BINARY:
+                if (messageOpcode >= 0) return protocolError(1002, "Expected a continuation frame");
+                messageOpcode = opcode;
+                break;
+            case OP_CONTINUATION:
+                if (messageOpcode < 0) return protocolError(1002, "Unexpected continuation frame");
+                break;
+            default:
+                return protocolError(1002, "Unknown opcode");
+        }
+        message.write(payload, 0, payload.length);
+        if (fin) {
+            int type = messageOpcode;
+            byte[] bytes = message.toByteArray();
+            message.reset();
+            messageOpcode = -1;
+            if (type == OP_BINARY) return protocolError(1003, "Binary messages are not supported");
+            String text;
+            try {
+                text = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT)
+                        .decode(ByteBuffer.wrap(bytes)).toString();
+            } catch (CharacterCodingException e) {
+                return protocolError(1007, "Invalid UTF-8");
+            }
+            listener.onText(this, text);
+        }
+        return true;
+    }
+
+    // Codes a peer may send (RFC 6455 section 7.4); 1005, 1006 and 1015 are for reporting only
+    private static boolean isValidCloseCode(int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+    }
+
+    private boolean protocolError(int code, String reason) {
+        close(code, reason);
+        return false;
+    }
+
+    private static String trim(String s) {
+        return s == null ? null : s.trim();
+    }
+}
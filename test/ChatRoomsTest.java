@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Room creation against the limit, and ids of a room that was swept and used again. */
+final class ChatRoomsTest {
+    public static void main(String[] args) throws IOException {
+        Path root = Files.createTempDirectory("rooms-test");
+        System.setProperty("alphachat.journal.dir", root.toString());
+        System.setProperty("alphachat.journal.flush.millis", "0");
+        Check.run("room limit", ChatRoomsTest::roomLimit);
+        Check.run("swept room continues its ids across a restart", ChatRoomsTest::sweptRoomKeepsIds);
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+        Check.done();
+    }
+
+    static void roomLimit() {
+        ChatRooms rooms = new ChatRooms(16, 16, 3, 0);
+        Check.isTrue(rooms.acquire("a") != null, "second room");
+        Check.isTrue(rooms.acquire("b") != null, "third room");
+        Check.equal(null, rooms.acquire("c"), "fourth room");
+        Check.isTrue(rooms.acquire("a") != null, "existing room past the limit");
+        rooms.restore(new ChatMessage(1, "s", "n", null, "recovered", 1, "d"));
+        Check.equal(1L, rooms.get("d").history().latestId(), "restore ignores the limit");
+    }
+
+    static void sweptRoomKeepsIds() throws Exception {
+        ChatRooms rooms = new ChatRooms(16, 16, 10, 1);
+        MessageJournal journal = MessageJournal.open("swept", rooms::restore);
+        post(journal, rooms.acquire("blue"), "before 1", "before 2", "before 3");
+
+        Thread.sleep(1100);
+        rooms.sweep();
+        Check.equal(null, rooms.get("blue"), "swept");
+        ChatRooms.Room again = rooms.acquire("blue");
+        Check.equal(3L, again.history().latestId(), "latest id of the recreated room");
+        Check.equal(List.of(), again.history().after(0, 10), "old messages are gone from memory");
+        post(journal, again, "after 1", "after 2");
+        Check.equal(List.of(4L, 5L), ids(again.history().after(0, 10)), "ids after the sweep");
+        journal.close();
+
+        ChatRooms restarted = new ChatRooms(16, 16, 10, 0);
+        MessageJournal.open("swept", restarted::restore).close();
+        MessageHistory history = restarted.get("blue").history();
+        Check.equal(5L, history.latestId(), "latest id after the restart");
+        List<ChatMessage> replayed = history.after(0, 10);
+        Check.equal(List.of("before 1", "before 2", "before 3", "after 1", "after 2"),
+                replayed.stream().map(ChatMessage::text).toList(), "replayed texts");
+        Check.equal(List.of(4L, 5L), ids(history.after(3, 10)), "replay after the last id seen before the sweep");
+    }
+
+    private static void post(MessageJournal journal, ChatRooms.Room room, String... texts) throws IOException {
+        for (String text : texts) journal.append(room.append("s", "Name", null, text));
+    }
+
+    private static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::id).toList();
+    }
+}
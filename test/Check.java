@@ -0,0 +1,55 @@
+import java.util.Objects;
+
+/**
+ * Assertions and a tiny runner for the main-based tests in this directory. Each test
+ * class calls {@link #run} per case and {@link #done} at the end, which exits with
+ * status 1 if anything failed.
+ */
+final class Check {
+    interface Body {
+        void run() throws Exception;
+    }
+
+    private static int failures;
+
+    private Check() {
+    }
+
+    static void run(String name, Body test) {
+        try {
+            test.run();
+            System.out.println("ok   " + name);
+        } catch (Throwable e) {
+            failures++;
+            System.out.println("FAIL " + name + ": " + e);
+        }
+    }
+
+    static void done() {
+        if (failures > 0) {
+            System.out.println(failures + " failed");
+            System.exit(1);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    static void isTrue(boolean condition, String what) {
+        if (!condition) throw new AssertionError(what);
+    }
+
+    /** Runs {@code body} and returns what it threw, failing if it threw nothing or something else. */
+    static <T extends Throwable> T fails(Class<T> type, Body body, String what) {
+        try {
+            body.run();
+        } catch (Throwable e) {
+            if (type.isInstance(e)) return type.cast(e);
+            throw new AssertionError(what + ": expected " + type.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError(what + ": expected " + type.getSimpleName());
+    }
+}
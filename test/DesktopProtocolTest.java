@@ -0,0 +1,196 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Varints and frames of the desktop protocol, fed split at every possible byte. */
+final class DesktopProtocolTest {
+    private static final int MAX_FRAME = 64 * 1024;
+
+    public static void main(String[] args) {
+        Check.run("varint round trip at size boundaries", DesktopProtocolTest::varintRoundTrip);
+        Check.run("incomplete varint leaves the position alone", DesktopProtocolTest::incompleteVarint);
+        Check.run("out of range varints are refused", DesktopProtocolTest::varintRange);
+        Check.run("batch split at every byte", DesktopProtocolTest::batchSplitAtEveryByte);
+        Check.run("frames fed one byte at a time", DesktopProtocolTest::framesByteByByte);
+        Check.run("disconnect stops decoding", DesktopProtocolTest::disconnectStops);
+        Check.run("oversized frame is refused from its header", DesktopProtocolTest::oversizedFrame);
+        Check.run("malformed batches are refused", DesktopProtocolTest::malformedBatches);
+        Check.run("unknown frame types are skipped", DesktopProtocolTest::unknownTypes);
+        Check.run("UTF-8 length matches what is written", DesktopProtocolTest::utf8Length);
+        Check.run("text lines split at every byte", DesktopProtocolTest::textSplitAtEveryByte);
+        Check.done();
+    }
+
+    static void varintRoundTrip() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, (1 << 21) - 1, 1 << 21, (1 << 28) - 1, 1 << 28, Integer.MAX_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5};
+        for (int i = 0; i < values.length; i++) {
+            ByteBuffer out = ByteBuffer.allocate(8);
+            DesktopProtocol.putVarint(out, values[i]);
+            Check.equal(sizes[i], out.position(), "bytes for " + values[i]);
+            Check.equal(sizes[i], DesktopProtocol.varintSize(values[i]), "size of " + values[i]);
+            Check.equal(values[i], DesktopProtocol.getVarint(out.flip()), "decoded " + values[i]);
+            Check.isTrue(!out.hasRemaining(), "consumed all of " + values[i]);
+        }
+    }
+
+    static void incompleteVarint() {
+        ByteBuffer full = ByteBuffer.allocate(8);
+        DesktopProtocol.putVarint(full, Integer.MAX_VALUE);
+        for (int n = 0; n < 5; n++) {
+            ByteBuffer part = ByteBuffer.wrap(full.array(), 0, n);
+            Check.equal(-1, DesktopProtocol.getVarint(part), "decoded from " + n + " bytes");
+            Check.equal(0, part.position(), "position after " + n + " bytes");
+        }
+    }
+
+    static void varintRange() {
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.getVarint(bytes(0x80, 0x80, 0x80, 0x80, 0x10)), "bit 32");
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.getVarint(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0x0F)), "negative");
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.getVarint(bytes(0x80, 0x80, 0x80, 0x80, 0x80, 0x00)), "six bytes");
+        Check.equal(Integer.MAX_VALUE, DesktopProtocol.getVarint(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0x07)), "largest");
+    }
+
+    static void batchSplitAtEveryByte() {
+        List<String> texts = List.of("first", "zwei\nZeilen", "x".repeat(200), "emoji 🎉 ä");
+        byte[] frames = array(DesktopProtocol.encodeMessages("Desktop", texts));
+        Check.equal(DesktopProtocol.BATCH, (int) frames[0], "batched");
+        List<String> expected = new ArrayList<>();
+        for (String t : texts) expected.add("message:" + t);
+        for (int split = 0; split <= frames.length; split++) {
+            Recorder r = new Recorder();
+            ByteBuffer buf = ByteBuffer.allocate(frames.length);
+            r.feed(buf, frames, 0, split);
+            r.feed(buf, frames, split, frames.length);
+            Check.equal(expected, r.events, "events when split at " + split);
+            Check.equal(0, buf.position(), "left over when split at " + split);
+        }
+    }
+
+    static void framesByteByByte() {
+        byte[] stream = concat(
+                array(DesktopProtocol.encodeMessages("", List.of("solo"))),
+                userFrame("Ann"),
+                array(DesktopProtocol.encodeMessages("", List.of("a", "b"))),
+                array(DesktopProtocol.encodeMessages("", List.of("m".repeat(300)))));
+        Recorder r = new Recorder();
+        ByteBuffer buf = ByteBuffer.allocate(stream.length);
+        for (int i = 0; i < stream.length; i++) r.feed(buf, stream, i, i + 1);
+        Check.equal(List.of("message:solo", "user:Ann", "message:a", "message:b", "message:" + "m".repeat(300)), r.events, "events");
+    }
+
+    static void disconnectStops() {
+        byte[] stream = concat(array(DesktopProtocol.encodeMessages("", List.of("bye"))), array(DesktopProtocol.encodeDisconnect()), userFrame("late"));
+        Recorder r = new Recorder();
+        ByteBuffer in = ByteBuffer.wrap(stream);
+        DesktopProtocol.decode(in, MAX_FRAME, r);
+        Check.equal(List.of("message:bye", "disconnect"), r.events, "events");
+        Check.equal(userFrame("late").length, in.remaining(), "bytes after the disconnect");
+    }
+
+    static void oversizedFrame() {
+        ByteBuffer header = ByteBuffer.allocate(8).put((byte) DesktopProtocol.MESSAGE);
+        DesktopProtocol.putVarint(header, MAX_FRAME + 1);
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.decode(header.flip(), MAX_FRAME, new Recorder()), "header only");
+    }
+
+    static void malformedBatches() {
+        byte[] inner = array(DesktopProtocol.encodeMessages("", List.of("a", "b")));
+        byte[] nested = concat(bytes(DesktopProtocol.BATCH, inner.length).array(), inner);
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.decode(ByteBuffer.wrap(nested), MAX_FRAME, new Recorder()), "nested batch");
+        byte[] overrun = {(byte) DesktopProtocol.BATCH, 3, (byte) DesktopProtocol.USER, 5, 'x'};
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.decode(ByteBuffer.wrap(overrun), MAX_FRAME, new Recorder()), "inner frame past the batch");
+        byte[] badSender = {(byte) DesktopProtocol.MESSAGE, 2, 9, 'x'};
+        Check.fails(IllegalArgumentException.class, () -> DesktopProtocol.decode(ByteBuffer.wrap(badSender), MAX_FRAME, new Recorder()), "sender past the frame");
+    }
+
+    static void unknownTypes() {
+        byte[] stream = concat(new byte[] {0x7F, 3, 1, 2, 3}, userFrame("Bo"));
+        Recorder r = new Recorder();
+        DesktopProtocol.decode(ByteBuffer.wrap(stream), MAX_FRAME, r);
+        Check.equal(List.of("user:Bo"), r.events, "events");
+    }
+
+    static void utf8Length() {
+        for (String s : new String[] {"", "ascii", "äöü", "€", "🎉", "mixed ä € 🎉 end"}) {
+            byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+            Check.equal(expected.length, DesktopProtocol.utf8Length(s), "length of " + s);
+            ByteBuffer out = ByteBuffer.allocate(expected.length);
+            DesktopProtocol.putUtf8(out, s);
+            Check.isTrue(Arrays.equals(expected, out.array()), "bytes of " + s);
+        }
+        String unpaired = "a\uD800b";
+        Check.equal(3, DesktopProtocol.utf8Length(unpaired), "unpaired surrogate length");
+        ByteBuffer out = ByteBuffer.allocate(3);
+        DesktopProtocol.putUtf8(out, unpaired);
+        Check.equal("a?b", new String(out.array(), StandardCharsets.UTF_8), "unpaired surrogate");
+    }
+
+    static void textSplitAtEveryByte() {
+        byte[] stream = "USER:Zoë\r\nMESSAGE:hello wörld\nDISCONNECT\n".getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= stream.length; split++) {
+            Recorder r = new Recorder();
+            ByteBuffer buf = ByteBuffer.allocate(stream.length);
+            r.feedText(buf, stream, 0, split);
+            r.feedText(buf, stream, split, stream.length);
+            Check.equal(List.of("user:Zoë", "message:hello wörld", "disconnect"), r.events, "events when split at " + split);
+        }
+    }
+
+    /** Records decoded commands and decodes the way a connection does: append, flip, decode, compact. */
+    static final class Recorder implements DesktopProtocol.Handler {
+        final List<String> events = new ArrayList<>();
+
+        void feed(ByteBuffer buf, byte[] bytes, int from, int to) {
+            buf.put(bytes, from, to - from).flip();
+            DesktopProtocol.decode(buf, MAX_FRAME, this);
+            buf.compact();
+        }
+
+        void feedText(ByteBuffer buf, byte[] bytes, int from, int to) {
+            buf.put(bytes, from, to - from).flip();
+            DesktopProtocol.decodeText(buf, this);
+            buf.compact();
+        }
+
+        @Override
+        public void message(String text) {
+            events.add("message:" + text);
+        }
+
+        @Override
+        public void user(String name) {
+            events.add("user:" + name);
+        }
+
+        @Override
+        public void disconnect() {
+            events.add("disconnect");
+        }
+    }
+
+    private static byte[] userFrame(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return concat(bytes(DesktopProtocol.USER, utf8.length).array(), utf8);
+    }
+
+    private static ByteBuffer bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) b[i] = (byte) values[i];
+        return ByteBuffer.wrap(b);
+    }
+
+    private static byte[] array(ByteBuffer buffer) {
+        byte[] b = new byte[buffer.remaining()];
+        buffer.duplicate().get(b);
+        return b;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteBuffer out = ByteBuffer.allocate(Arrays.stream(parts).mapToInt(p -> p.length).sum());
+        for (byte[] p : parts) out.put(p);
+        return out.array();
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** The Engine.IO v4 polling handshake, parked polls, and the probe and upgrade to WebSocket. */
+final class EngineIoTest {
+    private static final String SEPARATOR = "\u001e";
+
+    public static void main(String[] args) {
+        Check.run("polling handshake", EngineIoTest::pollingHandshake);
+        Check.run("handshake errors", EngineIoTest::handshakeErrors);
+        Check.run("posted packets are split and answered", EngineIoTest::postedPackets);
+        Check.run("queued packets go out on the next poll", EngineIoTest::queuedPackets);
+        Check.run("parked poll is answered and resumed", EngineIoTest::parkedPoll);
+        Check.run("overlapping polls end the session", EngineIoTest::overlappingPolls);
+        Check.run("probe and upgrade to WebSocket", EngineIoTest::probeAndUpgrade);
+        Check.run("failed probe stays on polling", EngineIoTest::failedProbe);
+        Check.run("WebSocket without polling first", EngineIoTest::webSocketOnly);
+        Check.done();
+    }
+
+    static void pollingHandshake() throws Exception {
+        Server server = new Server();
+        FakeConnection c = new FakeConnection();
+        Check.isTrue(!server.engine.handle(c, get("/socket.io/?EIO=4&transport=polling")), "answered at once");
+        String body = body(c.takeText(), 200);
+        Check.isTrue(body.startsWith("0{\"sid\":\""), body);
+        Check.isTrue(body.contains("\"upgrades\":[\"websocket\"]"), body);
+        Check.isTrue(body.contains("\"pingInterval\":60000"), body);
+        Check.equal("open", server.events.poll(), "event");
+        Check.equal(1, server.engine.size(), "sessions");
+        Check.equal(server.socket.id(), sid(body), "sid");
+    }
+
+    static void handshakeErrors() throws Exception {
+        Server server = new Server();
+        Check.equal(5, server.errorCode(get("/socket.io/?EIO=3&transport=polling")), "old protocol");
+        Check.equal(0, server.errorCode(get("/socket.io/?EIO=4&transport=flash")), "unknown transport");
+        Check.equal(1, server.errorCode(get("/socket.io/?EIO=4&transport=polling&sid=nope")), "unknown sid");
+        Check.equal(2, server.errorCode(post("/socket.io/?EIO=4&transport=polling", "")), "handshake by POST");
+        Check.equal(3, server.errorCode(get("/socket.io/?EIO=4&transport=websocket")), "websocket without upgrade");
+        Check.equal(0, server.engine.size(), "sessions");
+    }
+
+    static void postedPackets() throws Exception {
+        Server server = new Server();
+        String sid = server.open();
+        FakeConnection c = new FakeConnection();
+        server.engine.handle(c, post(path(sid), "4hello" + SEPARATOR + "2" + SEPARATOR + "4wörld"));
+        Check.equal("ok", body(c.takeText(), 200), "answer");
+        Check.equal("message:hello", server.events.poll(), "first message");
+        Check.equal("message:wörld", server.events.poll(), "second message");
+        Check.equal("3", server.poll(sid), "pong to the client's ping");
+        server.engine.handle(new FakeConnection(), post(path(sid), "1"));
+        Check.equal("close:client close", server.events.poll(), "client close");
+        Check.equal(0, server.engine.size(), "sessions");
+    }
+
+    static void queuedPackets() throws Exception {
+        Server server = new Server();
+        String sid = server.open();
+        server.socket.send("[\"a\"]");
+        server.socket.send("[\"b\"]");
+        Check.equal("4[\"a\"]" + SEPARATOR + "4[\"b\"]", server.poll(sid), "both packets in one answer");
+    }
+
+    static void parkedPoll() throws Exception {
+        Server server = new Server();
+        String sid = server.open();
+        FakeConnection c = new FakeConnection();
+        Check.isTrue(server.engine.handle(c, get(path(sid))), "poll parked");
+        Check.equal(0, c.take().length, "nothing sent while parked");
+        server.socket.send("[\"late\"]");
+        Check.equal("4[\"late\"]", body(new String(c.await(), StandardCharsets.UTF_8), 200), "answer");
+        Check.isTrue(server.resumed.poll(1, TimeUnit.SECONDS) == c, "connection handed back");
+    }
+
+    static void overlappingPolls() throws Exception {
+        Server server = new Server();
+        String sid = server.open();
+        FakeConnection first = new FakeConnection();
+        server.engine.handle(first, get(path(sid)));
+        Check.equal(3, server.errorCode(get(path(sid))), "second poll");
+        Check.equal("1", body(first.takeText(), 200), "first poll told to close");
+        Check.equal("close:bad poll", server.events.poll(), "event");
+    }
+
+    static void probeAndUpgrade() throws Exception {
+        Server server = new Server();
+        String sid = server.open();
+        FakeConnection poll = new FakeConnection();
+        server.engine.handle(poll, get(path(sid)));
+
+        FakeConnection ws = new FakeConnection();
+        Check.isTrue(server.engine.handle(ws, upgrade(path(sid).replace("polling", "websocket"))), "taken over");
+        Check.isTrue(ws.takeText().startsWith("HTTP/1.1 101 "), "switching protocols");
+        HttpConnection.Protocol protocol = ws.protocol();
+        Check.isTrue(protocol != null, "upgraded");
+
+        protocol.onData(ByteBuffer.wrap(WebSocketTest.clientFrame(0x81, WebSocketTest.utf8("2probe"))));
+        Check.equal(List.of("3probe"), texts(ws.take()), "probe answer");
+        Check.equal(0, poll.take().length, "poll still parked during the probe");
+
+        protocol.onData(ByteBuffer.wrap(WebSocketTest.clientFrame(0x81, WebSocketTest.utf8("5"))));
+        Check.equal("6", body(poll.takeText(), 200), "parked poll released with a noop");
+        Check.isTrue(server.resumed.poll(1, TimeUnit.SECONDS) == poll, "poll connection handed back");
+
+        server.socket.send("[\"over ws\"]");
+        Check.equal(List.of("4[\"over ws\"]"), texts(ws.await()), "message over the WebSocket");
+        protocol.onData(ByteBuffer.wrap(WebSocketTest.clientFrame(0x81, WebSocketTest.utf8("4[\"from ws\"]"))));
+        Check.equal("message:[\"from ws\"]", server.events.poll(), "message from the WebSocket");
+
+        Check.equal(3, server.errorCode(upgrade(path(sid).replace("polling", "websocket"))), "second upgrade");
+        Check.equal(3, server.errorCode(get(path(sid))), "polling after the upgrade");
+        Check.equal("close:bad poll", server.events.poll(), "event");
+    }
+
+    static void failedProbe() throws Exception {
+        Server server = new Server();
+        String sid = server.open();
+        FakeConnection ws = new FakeConnection();
+        server.engine.handle(ws, upgrade(path(sid).replace("polling", "websocket")));
+        ws.protocol().onData(ByteBuffer.wrap(WebSocketTest.clientFrame(0x81, WebSocketTest.utf8("2probe"))));
+        ws.protocol().onClose();
+        Check.equal(null, server.events.poll(), "no close event");
+        server.socket.send("[\"still polling\"]");
+        Check.equal("4[\"still polling\"]", server.poll(sid), "answer on polling");
+    }
+
+    static void webSocketOnly() throws Exception {
+        Server server = new Server();
+        FakeConnection ws = new FakeConnection();
+        Check.isTrue(server.engine.handle(ws, upgrade("/socket.io/?EIO=4&transport=websocket")), "taken over");
+        // The open packet is written by the drain and may already follow the 101
+        byte[] out = ws.take();
+        String head = new String(out, StandardCharsets.ISO_8859_1);
+        Check.isTrue(head.startsWith("HTTP/1.1 101 "), "switching protocols");
+        byte[] frames = Arrays.copyOfRange(out, head.indexOf("\r\n\r\n") + 4, out.length);
+        Check.equal("open", server.events.poll(), "event");
+        List<String> texts = texts(frames.length > 0 ? frames : ws.await());
+        Check.isTrue(texts.get(0).startsWith("0{\"sid\":\"" + server.socket.id() + "\""), texts.get(0));
+        Check.isTrue(texts.get(0).contains("\"upgrades\":[]"), texts.get(0));
+        ws.protocol().onClose();
+        Check.equal("close:transport close", server.events.poll(), "event");
+    }
+
+    /** An engine whose handler and resume callback record what they were told. */
+    static final class Server implements EngineIo.Handler {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        final BlockingQueue<HttpConnection> resumed = new LinkedBlockingQueue<>();
+        final EngineIo engine = new EngineIo(this, resumed::add, 60000, 60000, 16);
+        volatile EngineIo.Socket socket;
+
+        String open() throws IOException {
+            FakeConnection c = new FakeConnection();
+            engine.handle(c, get("/socket.io/?EIO=4&transport=polling"));
+            events.clear();
+            return sid(body(c.takeText(), 200));
+        }
+
+        String poll(String sid) throws IOException {
+            FakeConnection c = new FakeConnection();
+            Check.isTrue(!engine.handle(c, get(path(sid))), "answered at once");
+            return body(c.takeText(), 200);
+        }
+
+        int errorCode(HttpRequest request) throws IOException {
+            FakeConnection c = new FakeConnection();
+            Check.isTrue(!engine.handle(c, request), "answered at once");
+            String body = body(c.takeText(), 400);
+            return Integer.parseInt(body.substring(body.indexOf(':') + 1, body.indexOf(',')));
+        }
+
+        @Override
+        public void onOpen(EngineIo.Socket socket) {
+            this.socket = socket;
+            events.add("open");
+        }
+
+        @Override
+        public void onMessage(EngineIo.Socket socket, String data) {
+            events.add("message:" + data);
+        }
+
+        @Override
+        public void onClose(EngineIo.Socket socket, String reason) {
+            events.add("close:" + reason);
+        }
+    }
+
+    static String path(String sid) {
+        return "/socket.io/?EIO=4&transport=polling&sid=" + sid;
+    }
+
+    static HttpRequest get(String target) throws IOException {
+        return request("GET " + target + " HTTP/1.1\r\nHost: x\r\n\r\n");
+    }
+
+    static HttpRequest post(String target, String body) throws IOException {
+        byte[] bytes = WebSocketTest.utf8(body);
+        return request("POST " + target + " HTTP/1.1\r\nHost: x\r\nContent-Length: " + bytes.length + "\r\n\r\n"
+                + new String(bytes, StandardCharsets.ISO_8859_1));
+    }
+
+    static HttpRequest upgrade(String target) throws IOException {
+        return request("GET " + target + " HTTP/1.1\r\nHost: x\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n");
+    }
+
+    private static HttpRequest request(String raw) throws IOException {
+        return HttpRequestParserTest.feed(new HttpRequestParser(), HttpRequestParserTest.ascii(raw), 4096).get(0);
+    }
+
+    // The body of the single response in {@code response}, after checking its status
+    static String body(String response, int status) {
+        Check.isTrue(response.startsWith("HTTP/1.1 " + status + " "), "status of " + response);
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    static String sid(String openPacket) {
+        int start = openPacket.indexOf("\"sid\":\"") + 7;
+        return openPacket.substring(start, openPacket.indexOf('"', start));
+    }
+
+    static List<String> texts(byte[] frames) {
+        return WebSocketTest.frames(frames).stream().map(WebSocketTest.Frame::text).toList();
+    }
+}
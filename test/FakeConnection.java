@@ -0,0 +1,112 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/** An in-memory {@link HttpConnection} that records what was written and how it ended. */
+final class FakeConnection implements HttpConnection {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private HttpConnection.Protocol protocol;
+    private int requests;
+    private int resumed;
+    private boolean closed;
+
+    @Override
+    public HttpRequest readRequest() {
+        return null;
+    }
+
+    @Override
+    public OutputStream output() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                synchronized (FakeConnection.this) {
+                    written.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (FakeConnection.this) {
+                    written.write(b, off, len);
+                }
+            }
+        };
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer... buffers) throws IOException {
+        if (closed) throw new IOException("Connection closed");
+        for (ByteBuffer b : buffers) {
+            ByteBuffer copy = b.duplicate();
+            byte[] bytes = new byte[copy.remaining()];
+            copy.get(bytes);
+            written.write(bytes, 0, bytes.length);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean whenWritten(Runnable then) {
+        return true;
+    }
+
+    @Override
+    public synchronized int nextRequest() {
+        return ++requests;
+    }
+
+    @Override
+    public synchronized boolean resumeReading() {
+        resumed++;
+        return true;
+    }
+
+    @Override
+    public synchronized void upgrade(HttpConnection.Protocol upgraded) {
+        protocol = upgraded;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized HttpConnection.Protocol protocol() {
+        return protocol;
+    }
+
+    /** Everything written so far, which is then forgotten. */
+    synchronized byte[] take() {
+        byte[] bytes = written.toByteArray();
+        written.reset();
+        return bytes;
+    }
+
+    /** Like {@link #take()}, but first waits up to a second for something to be written. */
+    synchronized byte[] await() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (written.size() == 0 && System.currentTimeMillis() < deadline) {
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        return take();
+    }
+
+    /** {@link #take()} as text, for HTTP responses. */
+    String takeText() {
+        return new String(take(), StandardCharsets.UTF_8);
+    }
+}
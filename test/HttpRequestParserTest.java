@@ -0,0 +1,173 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Partial and pipelined requests, and the head, header and body limits. */
+final class HttpRequestParserTest {
+    public static void main(String[] args) {
+        Check.run("head split at every byte", HttpRequestParserTest::headSplitAtEveryByte);
+        Check.run("body arrives after the head", HttpRequestParserTest::bodyAfterHead);
+        Check.run("pipelined requests in one read", HttpRequestParserTest::pipelinedInOneRead);
+        Check.run("pipelined requests across compaction", HttpRequestParserTest::pipelinedAcrossCompaction);
+        Check.run("drain returns bytes after the request", HttpRequestParserTest::drainReturnsRest);
+        Check.run("head over the limit is 431", HttpRequestParserTest::headTooLarge);
+        Check.run("too many headers is 431", HttpRequestParserTest::tooManyHeaders);
+        Check.run("content-length over the limit is 413", HttpRequestParserTest::bodyTooLarge);
+        Check.run("bad content-length is 400", HttpRequestParserTest::badContentLength);
+        Check.run("chunked bodies are 501", HttpRequestParserTest::chunkedNotImplemented);
+        Check.run("buffer stops growing at the limit", HttpRequestParserTest::bufferLimit);
+        Check.run("blocking read across stream ends", HttpRequestParserTest::blockingRead);
+        Check.done();
+    }
+
+    static void headSplitAtEveryByte() throws IOException {
+        byte[] bytes = ascii("GET /events?room=blue HTTP/1.1\r\nHost: x\r\nX-Padded:  value \t\r\n\r\n");
+        HttpRequestParser parser = new HttpRequestParser(8);
+        for (int i = 0; i < bytes.length - 1; i++) {
+            parser.buffer().put(bytes[i]);
+            Check.equal(null, parser.parse(), "request after " + (i + 1) + " bytes");
+        }
+        parser.buffer().put(bytes[bytes.length - 1]);
+        HttpRequest request = parser.parse();
+        Check.equal("GET", request.method(), "method");
+        Check.equal("/events", request.path(), "path");
+        Check.equal("blue", request.query("room"), "query");
+        Check.equal("value", request.header("x-padded"), "trimmed header");
+        Check.isTrue(request.keepAlive(), "HTTP/1.1 keeps alive");
+        Check.isTrue(!parser.hasPartialRequest(), "nothing left over");
+    }
+
+    static void bodyAfterHead() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(16);
+        List<HttpRequest> got = feed(parser, ascii("POST /send HTTP/1.1\r\nContent-Length: 10\r\n\r\ntext="), 7);
+        Check.equal(0, got.size(), "requests before the body is complete");
+        Check.isTrue(parser.hasPartialRequest(), "partial request held");
+        got = feed(parser, ascii("hello"), 7);
+        Check.equal(1, got.size(), "requests once the body is complete");
+        Check.equal("text=hello", new String(got.get(0).body(), StandardCharsets.US_ASCII), "body");
+    }
+
+    static void pipelinedInOneRead() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(4096);
+        List<HttpRequest> got = feed(parser, ascii(
+                "POST /send HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc" +
+                "\r\nGET /health HTTP/1.0\r\n\r\n" +
+                "GET /rooms HTTP/1.1\r\nConnection: close\r\n\r\n" +
+                "GET /par"), 4096);
+        Check.equal(3, got.size(), "complete requests");
+        Check.equal("abc", new String(got.get(0).body(), StandardCharsets.US_ASCII), "first body");
+        Check.equal("/health", got.get(1).path(), "second path");
+        Check.isTrue(!got.get(1).keepAlive(), "HTTP/1.0 without keep-alive closes");
+        Check.isTrue(!got.get(2).keepAlive(), "Connection: close closes");
+        Check.isTrue(parser.hasPartialRequest(), "fourth request held");
+        got = feed(parser, ascii("tial HTTP/1.1\r\n\r\n"), 4096);
+        Check.equal("/partial", got.get(0).path(), "fourth path");
+    }
+
+    static void pipelinedAcrossCompaction() throws IOException {
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            stream.append("POST /send?n=").append(i).append(" HTTP/1.1\r\nContent-Length: ")
+                    .append(String.valueOf(i).length()).append("\r\n\r\n").append(i);
+        }
+        HttpRequestParser parser = new HttpRequestParser(64);
+        List<HttpRequest> got = feed(parser, ascii(stream.toString()), 13);
+        Check.equal(50, got.size(), "requests");
+        for (int i = 0; i < 50; i++) {
+            Check.equal(String.valueOf(i), got.get(i).query("n"), "query of request " + i);
+            Check.equal(String.valueOf(i), new String(got.get(i).body(), StandardCharsets.US_ASCII), "body of request " + i);
+        }
+    }
+
+    static void drainReturnsRest() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(4096);
+        List<HttpRequest> got = feed(parser, ascii("GET /ws HTTP/1.1\r\nUpgrade: websocket\r\n\r\n\u0081\u0085frame"), 4096);
+        Check.equal(1, got.size(), "requests");
+        ByteBuffer rest = parser.drain();
+        Check.equal(7, rest.remaining(), "bytes after the head");
+        Check.isTrue(!parser.hasPartialRequest(), "parser empty after drain");
+    }
+
+    static void headTooLarge() {
+        HttpRequestParser parser = new HttpRequestParser(1024);
+        byte[] head = ascii("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(HttpRequestParser.MAX_HEAD_BYTES) + "\r\n");
+        HttpRequestParser.ParseException e = Check.fails(HttpRequestParser.ParseException.class,
+                () -> feed(parser, head, 4096), "endless head");
+        Check.isTrue(e.getMessage().startsWith("431"), "status of " + e.getMessage());
+    }
+
+    static void tooManyHeaders() {
+        StringBuilder head = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= HttpRequestParser.MAX_HEADERS; i++) head.append("X-").append(i).append(": 1\r\n");
+        head.append("\r\n");
+        HttpRequestParser.ParseException e = Check.fails(HttpRequestParser.ParseException.class,
+                () -> feed(new HttpRequestParser(), ascii(head.toString()), 4096), "header count");
+        Check.isTrue(e.getMessage().startsWith("431"), "status of " + e.getMessage());
+    }
+
+    static void bodyTooLarge() {
+        byte[] head = ascii("POST /send HTTP/1.1\r\nContent-Length: " + (HttpRequestParser.MAX_BODY_BYTES + 1) + "\r\n\r\n");
+        HttpRequestParser.ParseException e = Check.fails(HttpRequestParser.ParseException.class,
+                () -> feed(new HttpRequestParser(), head, 4096), "declared length");
+        Check.isTrue(e.getMessage().startsWith("413"), "status of " + e.getMessage());
+    }
+
+    static void badContentLength() {
+        HttpRequestParser.ParseException e = Check.fails(HttpRequestParser.ParseException.class,
+                () -> feed(new HttpRequestParser(), ascii("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n"), 4096), "negative length");
+        Check.isTrue(e.getMessage().startsWith("400"), "status of " + e.getMessage());
+    }
+
+    static void chunkedNotImplemented() {
+        HttpRequestParser.ParseException e = Check.fails(HttpRequestParser.ParseException.class,
+                () -> feed(new HttpRequestParser(), ascii("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"), 4096), "chunked");
+        Check.isTrue(e.getMessage().startsWith("501"), "status of " + e.getMessage());
+    }
+
+    // Without a parse in between nothing can be compacted away, so the buffer grows until the limit
+    static void bufferLimit() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(16);
+        int limit = HttpRequestParser.MAX_HEAD_BYTES + HttpRequestParser.MAX_BODY_BYTES;
+        int filled = 0;
+        while (filled < limit) {
+            ByteBuffer b = parser.buffer();
+            filled += b.remaining();
+            b.position(b.limit());
+        }
+        Check.equal(limit, filled, "bytes accepted");
+        Check.isTrue(parser.isFull(), "full at the limit");
+        HttpRequestParser.ParseException e = Check.fails(HttpRequestParser.ParseException.class, parser::buffer, "growing past the limit");
+        Check.isTrue(e.getMessage().startsWith("413"), "status of " + e.getMessage());
+    }
+
+    static void blockingRead() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser();
+        HttpRequest request = parser.read(new ByteArrayInputStream(ascii("GET /a HTTP/1.1\r\n\r\n")));
+        Check.equal("/a", request.path(), "path");
+        Check.equal(null, parser.read(new ByteArrayInputStream(new byte[0])), "clean end between requests");
+        HttpRequestParser torn = new HttpRequestParser();
+        Check.fails(IOException.class, () -> torn.read(new ByteArrayInputStream(ascii("GET /b HT"))), "end mid-request");
+    }
+
+    // Writes at most chunk bytes per read, the way a socket would, and parses after each one
+    static List<HttpRequest> feed(HttpRequestParser parser, byte[] bytes, int chunk) throws IOException {
+        List<HttpRequest> requests = new ArrayList<>();
+        int offset = 0;
+        while (offset < bytes.length) {
+            ByteBuffer b = parser.buffer();
+            int n = Math.min(Math.min(chunk, b.remaining()), bytes.length - offset);
+            b.put(bytes, offset, n);
+            offset += n;
+            HttpRequest request;
+            while ((request = parser.parse()) != null) requests.add(request);
+        }
+        return requests;
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
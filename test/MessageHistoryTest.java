@@ -0,0 +1,81 @@
+import java.util.List;
+
+/** Id and time range reads over the history ring, including overwritten slots. */
+final class MessageHistoryTest {
+    public static void main(String[] args) {
+        Check.run("ids rise from the starting point", MessageHistoryTest::idsRise);
+        Check.run("after and latest stay inside the ring", MessageHistoryTest::afterAndLatest);
+        Check.run("between is half-open", MessageHistoryTest::betweenHalfOpen);
+        Check.run("between skips overwritten messages", MessageHistoryTest::betweenOverwritten);
+        Check.run("between stops at the limit", MessageHistoryTest::betweenLimit);
+        Check.run("between on an empty history", MessageHistoryTest::betweenEmpty);
+        Check.run("restore keeps ids and the newest per slot", MessageHistoryTest::restore);
+        Check.done();
+    }
+
+    static void idsRise() {
+        MessageHistory history = new MessageHistory("blue", 8, 41);
+        Check.equal(41L, history.latestId(), "latest before any append");
+        Check.equal(42L, append(history, 1000).id(), "first id");
+        Check.equal(43L, append(history, 1000).id(), "second id");
+        Check.equal(List.of(42L, 43L), ids(history.after(0, 10)), "all messages");
+    }
+
+    static void afterAndLatest() {
+        MessageHistory history = filled(8, 20);
+        Check.equal(13L, history.oldestId(), "oldest id");
+        Check.equal(List.of(13L, 14L, 15L, 16L, 17L, 18L, 19L, 20L), ids(history.after(0, 100)), "after 0");
+        Check.equal(List.of(19L, 20L), ids(history.after(18, 100)), "after 18");
+        Check.equal(List.of(18L, 19L, 20L), ids(history.after(0, 3)), "newest three after 0");
+        Check.equal(List.of(20L), ids(history.latest(1)), "latest one");
+    }
+
+    // Message n has timestamp n * 10
+    static void betweenHalfOpen() {
+        MessageHistory history = filled(16, 10);
+        Check.equal(List.of(3L, 4L, 5L), ids(history.between(30, 60, 100)), "[30, 60)");
+        Check.equal(List.of(3L, 4L, 5L, 6L), ids(history.between(25, 61, 100)), "[25, 61)");
+        Check.equal(List.of(), ids(history.between(60, 60, 100)), "empty range");
+        Check.equal(List.of(), ids(history.between(101, Long.MAX_VALUE, 100)), "after the newest");
+        Check.equal(List.of(1L, 2L), ids(history.between(0, 30, 100)), "from before the oldest");
+    }
+
+    static void betweenOverwritten() {
+        MessageHistory history = filled(8, 20);
+        Check.equal(List.of(13L, 14L), ids(history.between(0, 150, 100)), "only what the ring still holds");
+        Check.equal(List.of(20L), ids(history.between(200, Long.MAX_VALUE, 100)), "newest");
+    }
+
+    static void betweenLimit() {
+        MessageHistory history = filled(16, 10);
+        Check.equal(List.of(2L, 3L), ids(history.between(20, Long.MAX_VALUE, 2)), "oldest two from 20");
+    }
+
+    static void betweenEmpty() {
+        Check.equal(List.of(), new MessageHistory(8).between(0, Long.MAX_VALUE, 10), "nothing stored");
+    }
+
+    static void restore() {
+        MessageHistory history = new MessageHistory("blue", 4);
+        for (long id : new long[] {5, 1, 2, 6, 3}) {
+            history.restore(new ChatMessage(id, "s", null, null, "m" + id, id * 10, "blue"));
+        }
+        Check.equal(6L, history.latestId(), "latest id");
+        Check.equal(List.of(3L, 5L, 6L), ids(history.after(0, 10)), "ids still in the ring");
+        Check.equal(7L, append(history, 70).id(), "next id follows the restored ones");
+    }
+
+    private static MessageHistory filled(int capacity, int count) {
+        MessageHistory history = new MessageHistory("blue", capacity);
+        for (int n = 1; n <= count; n++) append(history, n * 10L);
+        return history;
+    }
+
+    private static ChatMessage append(MessageHistory history, long timestamp) {
+        return history.append("s", "Name", null, "text", timestamp);
+    }
+
+    private static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::id).toList();
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/** Replay after a restart, and recovery from torn and corrupt tails. */
+final class MessageJournalTest {
+    private static Path root;
+
+    public static void main(String[] args) throws IOException {
+        root = Files.createTempDirectory("journal-test");
+        System.setProperty("alphachat.journal.dir", root.toString());
+        System.setProperty("alphachat.journal.segment.bytes", "4096");
+        System.setProperty("alphachat.journal.flush.millis", "0");
+        Check.run("replay in order after close", MessageJournalTest::replayInOrder);
+        Check.run("garbage after the tail is wiped", MessageJournalTest::garbageAfterTail);
+        Check.run("torn record is truncated", MessageJournalTest::tornRecord);
+        Check.run("corrupt record ends the segment", MessageJournalTest::corruptRecord);
+        Check.run("rolled segments replay oldest first", MessageJournalTest::rolledSegments);
+        Check.run("records without a room replay into the default room", MessageJournalTest::legacyRecord);
+        Check.run("group commit completes durable waiters", MessageJournalTest::groupCommit);
+        try (Stream<Path> files = Files.walk(root)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(p);
+        }
+        Check.done();
+    }
+
+    static void replayInOrder() throws IOException {
+        List<ChatMessage> sent = List.of(
+                message(1, "plain", "blue"),
+                new ChatMessage(2, "s2", null, null, "no name or avatar", 1002, "red"),
+                message(3, "ünïcödé 🎉", ChatRooms.DEFAULT));
+        MessageJournal journal = open("replay", new ArrayList<>());
+        for (ChatMessage m : sent) journal.append(m);
+        journal.close();
+        List<ChatMessage> replayed = new ArrayList<>();
+        open("replay", replayed).close();
+        Check.equal(sent, replayed, "replayed messages");
+    }
+
+    static void garbageAfterTail() throws IOException {
+        writeThree("garbage");
+        Path segment = segments("garbage").get(0);
+        int end = recordEnds(segment).get(2);
+        patch(segment, end, filled(200, (byte) 0x5A));
+        List<ChatMessage> replayed = reopenAndAppend("garbage", message(4, "after restart", "blue"));
+        Check.equal(List.of(1L, 2L, 3L, 4L), ids(replayed), "ids");
+        byte[] bytes = Files.readAllBytes(segment);
+        for (int p = recordEnds(segment).get(3); p < end + 200; p++) {
+            Check.equal((byte) 0, bytes[p], "byte " + p + " past the new tail");
+        }
+    }
+
+    // The payload of the last record never made it to disk: only its header did
+    static void tornRecord() throws IOException {
+        writeThree("torn");
+        Path segment = segments("torn").get(0);
+        List<Integer> ends = recordEnds(segment);
+        int payloadStart = ends.get(1) + 8;
+        patch(segment, payloadStart, new byte[ends.get(2) - payloadStart]);
+        List<ChatMessage> replayed = reopenAndAppend("torn", message(4, "after restart", "blue"));
+        Check.equal(List.of(1L, 2L, 4L), ids(replayed), "ids");
+    }
+
+    static void corruptRecord() throws IOException {
+        writeThree("corrupt");
+        Path segment = segments("corrupt").get(0);
+        int inSecond = recordEnds(segment).get(0) + 8 + 20;
+        byte[] flipped = {(byte) (Files.readAllBytes(segment)[inSecond] ^ 0x01)};
+        patch(segment, inSecond, flipped);
+        List<ChatMessage> replayed = reopenAndAppend("corrupt", message(4, "after restart", "blue"));
+        Check.equal(List.of(1L, 4L), ids(replayed), "ids");
+    }
+
+    static void rolledSegments() throws IOException {
+        System.setProperty("alphachat.journal.retain.segments", "2");
+        try {
+            MessageJournal journal = open("rolled", new ArrayList<>());
+            for (int i = 1; i <= 100; i++) journal.append(message(i, "x".repeat(100), "blue"));
+            journal.close();
+            Check.equal(2, segments("rolled").size(), "segments kept");
+            List<ChatMessage> replayed = new ArrayList<>();
+            open("rolled", replayed).close();
+            List<Long> ids = ids(replayed);
+            Check.isTrue(!ids.isEmpty() && ids.size() < 100, "only the retained segments replay: " + ids.size());
+            for (int i = 0; i < ids.size(); i++) {
+                Check.equal(100L - ids.size() + 1 + i, ids.get(i), "id at " + i);
+            }
+        } finally {
+            System.clearProperty("alphachat.journal.retain.segments");
+        }
+    }
+
+    static void legacyRecord() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(64).putLong(7).putLong(1007);
+        for (String field : new String[] {"s7", "Old", null, "before rooms"}) {
+            if (field == null) {
+                payload.putInt(-1);
+            } else {
+                byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                payload.putInt(bytes.length).put(bytes);
+            }
+        }
+        byte[] body = new byte[payload.position()];
+        payload.flip().get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        Path dir = Files.createDirectories(root.resolve("legacy"));
+        Files.write(dir.resolve("segment-000001.log"),
+                ByteBuffer.allocate(8 + body.length).putInt(body.length).putInt((int) crc.getValue()).put(body).array());
+        List<ChatMessage> replayed = new ArrayList<>();
+        open("legacy", replayed).close();
+        Check.equal(List.of(new ChatMessage(7, "s7", "Old", null, "before rooms", 1007, ChatRooms.DEFAULT)), replayed, "replayed");
+    }
+
+    static void groupCommit() throws Exception {
+        System.setProperty("alphachat.journal.flush.millis", "20");
+        try {
+            MessageJournal journal = open("group", new ArrayList<>());
+            long seq = 0;
+            for (int i = 1; i <= 5; i++) seq = journal.append(message(i, "batched", "blue"));
+            journal.whenDurable(seq).get(2, TimeUnit.SECONDS);
+            Check.isTrue(journal.whenDurable(seq).isDone(), "already durable once synced");
+            journal.close();
+        } finally {
+            System.setProperty("alphachat.journal.flush.millis", "0");
+        }
+    }
+
+    private static MessageJournal open(String name, List<ChatMessage> recovered) {
+        MessageJournal journal = MessageJournal.open(name, recovered::add);
+        Check.isTrue(journal != null, "journal " + name + " opened");
+        return journal;
+    }
+
+    private static void writeThree(String name) throws IOException {
+        MessageJournal journal = open(name, new ArrayList<>());
+        for (int i = 1; i <= 3; i++) journal.append(message(i, "message " + i, "blue"));
+        journal.close();
+    }
+
+    // Restarts over a damaged tail, appends one message, and returns what a second restart replays
+    private static List<ChatMessage> reopenAndAppend(String name, ChatMessage next) throws IOException {
+        MessageJournal journal = open(name, new ArrayList<>());
+        journal.append(next);
+        journal.close();
+        List<ChatMessage> replayed = new ArrayList<>();
+        open(name, replayed).close();
+        return replayed;
+    }
+
+    private static ChatMessage message(long id, String text, String room) {
+        return new ChatMessage(id, "s" + id, "Name " + id, "avatar_" + id + ".jpg", text, 1000 + id, room);
+    }
+
+    private static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::id).toList();
+    }
+
+    private static List<Path> segments(String name) throws IOException {
+        try (Stream<Path> files = Files.list(root.resolve(name))) {
+            return files.sorted().toList();
+        }
+    }
+
+    // Offsets just past each record, read from the length fields up to the end marker
+    private static List<Integer> recordEnds(Path segment) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(segment));
+        List<Integer> ends = new ArrayList<>();
+        int length;
+        while (buf.remaining() >= 8 && (length = buf.getInt(buf.position())) > 0) {
+            buf.position(buf.position() + 8 + length);
+            ends.add(buf.position());
+        }
+        return ends;
+    }
+
+    private static void patch(Path file, int position, byte[] bytes) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(bytes), position);
+        }
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** Masking, fragmentation, control frames and close codes of the server side of RFC 6455. */
+final class WebSocketTest {
+    private static final int FIN = 0x80;
+    private static final int TEXT = 0x1;
+    private static final int BINARY = 0x2;
+    private static final int CONTINUATION = 0x0;
+    private static final int CLOSE = 0x8;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xA;
+    private static final Random RANDOM = new Random(6455);
+
+    /** One frame the server sent. */
+    record Frame(int opcode, byte[] payload) {
+        String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        int closeCode() {
+            return ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        }
+    }
+
+    public static void main(String[] args) {
+        Check.run("handshake accept key", WebSocketTest::handshake);
+        Check.run("masked text is unmasked", WebSocketTest::maskedText);
+        Check.run("frames split at every byte", WebSocketTest::splitAtEveryByte);
+        Check.run("fragments with a ping in between", WebSocketTest::fragmentsAroundPing);
+        Check.run("fragments of a 16-bit length message", WebSocketTest::longFragments);
+        Check.run("unmasked frame is 1002", WebSocketTest::unmaskedFrame);
+        Check.run("reserved bits are 1002", WebSocketTest::reservedBits);
+        Check.run("fragmented ping is 1002", WebSocketTest::fragmentedControl);
+        Check.run("stray continuation is 1002", WebSocketTest::strayContinuation);
+        Check.run("new message inside a fragmented one is 1002", WebSocketTest::interruptedMessage);
+        Check.run("unknown opcode is 1002", WebSocketTest::unknownOpcode);
+        Check.run("binary message is 1003", WebSocketTest::binaryMessage);
+        Check.run("invalid UTF-8 is 1007", WebSocketTest::invalidUtf8);
+        Check.run("oversized message is 1009", WebSocketTest::oversizedMessage);
+        Check.run("oversized fragments are 1009", WebSocketTest::oversizedFragments);
+        Check.run("pings inside a message at the limit", WebSocketTest::pingsAtTheLimit);
+        Check.run("close code is echoed", WebSocketTest::closeEchoed);
+        Check.run("reserved close codes are 1002", WebSocketTest::reservedCloseCodes);
+        Check.run("empty close is answered with 1000", WebSocketTest::emptyClose);
+        Check.run("server frame lengths", WebSocketTest::serverFrameLengths);
+        Check.done();
+    }
+
+    static void handshake() throws IOException {
+        HttpRequest request = HttpRequestParserTest.feed(new HttpRequestParser(), HttpRequestParserTest.ascii(
+                "GET /ws HTTP/1.1\r\nHost: x\r\nUpgrade: websocket\r\nConnection: keep-alive, Upgrade\r\n"
+                        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n"), 4096).get(0);
+        Check.isTrue(WebSocket.isUpgrade(request), "is an upgrade");
+        String response = StandardCharsets.US_ASCII.decode(WebSocket.handshake(request)).toString();
+        Check.isTrue(response.startsWith("HTTP/1.1 101 "), response);
+        Check.isTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"), response);
+        HttpRequest old = HttpRequestParserTest.feed(new HttpRequestParser(), HttpRequestParserTest.ascii(
+                "GET /ws HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                        + "Sec-WebSocket-Key: x\r\nSec-WebSocket-Version: 8\r\n\r\n"), 4096).get(0);
+        Check.isTrue(!WebSocket.isUpgrade(old), "version 8 is refused");
+    }
+
+    static void maskedText() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | TEXT, utf8("hällo")));
+        Check.equal(List.of("hällo"), s.texts, "texts");
+        Check.equal(0, s.connection.take().length, "nothing sent back");
+    }
+
+    static void splitAtEveryByte() throws IOException {
+        byte[] stream = concat(
+                clientFrame(TEXT, utf8("one ")),
+                clientFrame(FIN | PING, utf8("p")),
+                clientFrame(FIN | CONTINUATION, utf8("two")),
+                clientFrame(FIN | TEXT, utf8("x".repeat(300))));
+        Session s = new Session();
+        for (byte b : stream) s.socket.onData(ByteBuffer.wrap(new byte[] {b}));
+        Check.equal(List.of("one two", "x".repeat(300)), s.texts, "texts");
+        List<Frame> sent = frames(s.connection.take());
+        Check.equal(1, sent.size(), "frames sent");
+        Check.equal(PONG, sent.get(0).opcode(), "pong");
+        Check.equal("p", sent.get(0).text(), "pong payload");
+    }
+
+    static void fragmentsAroundPing() throws IOException {
+        Session s = new Session();
+        s.receive(concat(
+                clientFrame(TEXT, utf8("frag")),
+                clientFrame(FIN | PING, utf8("pp")),
+                clientFrame(CONTINUATION, utf8("-")),
+                clientFrame(FIN | CONTINUATION, utf8("ment"))));
+        Check.equal(List.of("frag-ment"), s.texts, "texts");
+        List<Frame> sent = frames(s.connection.take());
+        Check.equal(PONG, sent.get(0).opcode(), "pong");
+        Check.equal("pp", sent.get(0).text(), "pong payload");
+    }
+
+    static void longFragments() throws IOException {
+        Session s = new Session();
+        String a = "a".repeat(200);
+        String b = "b".repeat(40000);
+        s.receive(concat(clientFrame(TEXT, utf8(a)), clientFrame(FIN | CONTINUATION, utf8(b))));
+        Check.equal(List.of(a + b), s.texts, "texts");
+    }
+
+    static void unmaskedFrame() throws IOException {
+        Session s = new Session();
+        byte[] payload = utf8("x");
+        s.receive(concat(new byte[] {(byte) (FIN | TEXT), (byte) payload.length}, payload));
+        s.expectClose(1002);
+    }
+
+    static void reservedBits() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | 0x40 | TEXT, utf8("x")));
+        s.expectClose(1002);
+    }
+
+    static void fragmentedControl() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(PING, utf8("p")));
+        s.expectClose(1002);
+    }
+
+    static void strayContinuation() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | CONTINUATION, utf8("x")));
+        s.expectClose(1002);
+    }
+
+    static void interruptedMessage() throws IOException {
+        Session s = new Session();
+        s.receive(concat(clientFrame(TEXT, utf8("a")), clientFrame(FIN | TEXT, utf8("b"))));
+        s.expectClose(1002);
+    }
+
+    static void unknownOpcode() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | 0x3, utf8("x")));
+        s.expectClose(1002);
+    }
+
+    static void binaryMessage() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | BINARY, new byte[] {1, 2, 3}));
+        s.expectClose(1003);
+    }
+
+    static void invalidUtf8() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | TEXT, new byte[] {'a', (byte) 0xC3}));
+        s.expectClose(1007);
+    }
+
+    // Refused from the header alone, before the payload arrives
+    static void oversizedMessage() throws IOException {
+        Session s = new Session();
+        byte[] frame = clientFrame(FIN | TEXT, new byte[WebSocket.MAX_MESSAGE_BYTES + 1]);
+        s.receive(Arrays.copyOf(frame, 14));
+        s.expectClose(1009);
+    }
+
+    static void oversizedFragments() throws IOException {
+        Session s = new Session();
+        int half = WebSocket.MAX_MESSAGE_BYTES / 2 + 1;
+        s.receive(concat(clientFrame(TEXT, new byte[half]), clientFrame(FIN | CONTINUATION, new byte[half])));
+        s.expectClose(1009);
+        Check.equal(List.of(), s.texts, "texts");
+    }
+
+    // Control frames between fragments do not count toward the message size
+    static void pingsAtTheLimit() throws IOException {
+        Session s = new Session();
+        int first = WebSocket.MAX_MESSAGE_BYTES - 10;
+        s.receive(concat(
+                clientFrame(TEXT, utf8("a".repeat(first))),
+                clientFrame(FIN | PING, new byte[125]),
+                clientFrame(FIN | CONTINUATION, utf8("b".repeat(10)))));
+        Check.equal(1, s.texts.size(), "messages");
+        Check.equal(WebSocket.MAX_MESSAGE_BYTES, s.texts.get(0).length(), "message length");
+        List<Frame> sent = frames(s.connection.take());
+        Check.equal(List.of(PONG), sent.stream().map(Frame::opcode).toList(), "only a pong sent");
+    }
+
+    static void closeEchoed() throws IOException {
+        Session s = new Session();
+        s.receive(concat(clientFrame(FIN | CLOSE, new byte[] {0x03, (byte) 0xE9, 'b', 'y', 'e'}), clientFrame(FIN | TEXT, utf8("late"))));
+        s.expectClose(1001);
+        Check.equal(List.of(), s.texts, "nothing read after the close");
+    }
+
+    static void reservedCloseCodes() throws IOException {
+        for (int code : new int[] {0, 999, 1004, 1005, 1006, 1015, 2999, 5000}) {
+            Session s = new Session();
+            s.receive(clientFrame(FIN | CLOSE, new byte[] {(byte) (code >> 8), (byte) code}));
+            s.expectClose(1002);
+        }
+        Session oneByte = new Session();
+        oneByte.receive(clientFrame(FIN | CLOSE, new byte[] {0x03}));
+        oneByte.expectClose(1002);
+        for (int code : new int[] {1000, 1011, 1014, 3000, 4999}) {
+            Session s = new Session();
+            s.receive(clientFrame(FIN | CLOSE, new byte[] {(byte) (code >> 8), (byte) code}));
+            s.expectClose(code);
+        }
+    }
+
+    static void emptyClose() throws IOException {
+        Session s = new Session();
+        s.receive(clientFrame(FIN | CLOSE, new byte[0]));
+        s.expectClose(1000);
+        s.socket.onClose();
+        s.socket.onClose();
+        Check.equal(1, s.closes, "listener told once");
+    }
+
+    static void serverFrameLengths() {
+        for (int length : new int[] {0, 125, 126, 65535, 65536}) {
+            ByteBuffer frame = WebSocket.textFrame("z".repeat(length));
+            Check.isTrue(frame.isReadOnly(), "shared frames are read-only");
+            byte[] bytes = new byte[frame.remaining()];
+            frame.duplicate().get(bytes);
+            List<Frame> parsed = frames(bytes);
+            Check.equal(1, parsed.size(), "frames for " + length);
+            Check.equal(TEXT, parsed.get(0).opcode(), "opcode for " + length);
+            Check.equal(length, parsed.get(0).payload().length, "payload length");
+            int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+            Check.equal(header + length, bytes.length, "frame size for " + length);
+        }
+    }
+
+    /** A socket over a {@link FakeConnection} that remembers what its listener was told. */
+    static final class Session implements WebSocket.Listener {
+        final FakeConnection connection = new FakeConnection();
+        final WebSocket socket = new WebSocket(connection, this);
+        final List<String> texts = new ArrayList<>();
+        int closes;
+
+        void receive(byte[] bytes) throws IOException {
+            socket.onData(ByteBuffer.wrap(bytes));
+        }
+
+        void expectClose(int code) {
+            List<Frame> sent = frames(connection.take());
+            Check.isTrue(!sent.isEmpty(), "a close frame was sent");
+            Frame last = sent.get(sent.size() - 1);
+            Check.equal(CLOSE, last.opcode(), "last opcode");
+            Check.equal(code, last.closeCode(), "close code");
+            Check.isTrue(connection.isClosed(), "connection closed");
+        }
+
+        @Override
+        public void onText(WebSocket socket, String text) {
+            texts.add(text);
+        }
+
+        @Override
+        public void onClose(WebSocket socket) {
+            closes++;
+        }
+    }
+
+    /** A client frame with the given first byte, masked with a random key as clients must. */
+    static byte[] clientFrame(int b0, byte[] payload) {
+        int n = payload.length;
+        ByteBuffer frame = ByteBuffer.allocate(14 + n);
+        frame.put((byte) b0);
+        if (n < 126) {
+            frame.put((byte) (0x80 | n));
+        } else if (n <= 0xFFFF) {
+            frame.put((byte) (0x80 | 126)).putShort((short) n);
+        } else {
+            frame.put((byte) (0x80 | 127)).putLong(n);
+        }
+        byte[] mask = new byte[4];
+        RANDOM.nextBytes(mask);
+        frame.put(mask);
+        for (int i = 0; i < n; i++) frame.put((byte) (payload[i] ^ mask[i & 3]));
+        return Arrays.copyOf(frame.array(), frame.position());
+    }
+
+    /** Splits unmasked server output into frames; fails on a trailing partial frame. */
+    static List<Frame> frames(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        List<Frame> frames = new ArrayList<>();
+        while (in.hasRemaining()) {
+            int b0 = in.get() & 0xFF;
+            int b1 = in.get() & 0xFF;
+            Check.isTrue((b0 & FIN) != 0, "server frames are final");
+            Check.isTrue((b1 & 0x80) == 0, "server frames are unmasked");
+            long length = b1 & 0x7F;
+            if (length == 126) length = in.getShort() & 0xFFFF;
+            else if (length == 127) length = in.getLong();
+            byte[] payload = new byte[(int) length];
+            in.get(payload);
+            frames.add(new Frame(b0 & 0x0F, payload));
+        }
+        return frames;
+    }
+
+    static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] p : parts) length += p.length;
+        byte[] out = new byte[length];
+        int at = 0;
+        for (byte[] p : parts) {
+            System.arraycopy(p, 0, out, at, p.length);
+            at += p.length;
+        }
+        return out;
+    }
+}